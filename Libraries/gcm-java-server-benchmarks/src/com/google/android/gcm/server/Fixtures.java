@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Data shared by the benchmarks, generated with a fixed seed so every run uses the same data.
+ */
+final class Fixtures {
+
+    private static final String TOKEN_CHARS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    private Fixtures() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Creates registration ids that look like the ones returned by GCM.
+     */
+    static List<String> registrationIds(int count) {
+        Random random = new Random(42);
+        List<String> registrationIds = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder registrationId = new StringBuilder("APA91b");
+            while (registrationId.length() < 152) {
+                registrationId.append(TOKEN_CHARS.charAt(random.nextInt(TOKEN_CHARS.length())));
+            }
+            registrationIds.add(registrationId.toString());
+        }
+        return registrationIds;
+    }
+
+    /**
+     * Creates a message with the usual attributes and a small payload.
+     */
+    static Message message() {
+        return new Message.Builder().collapseKey("news").timeToLive(3600).delayWhileIdle(true)
+                .addData("title", "Breaking news").addData("body", "Something happened, again")
+                .addData("url", "https://example.com/news/42").build();
+    }
+
+    /**
+     * Creates the JSON response of a multicast, where one result out of every
+     * {@code errorInterval} has an error and one out of every {@code canonicalInterval} has a
+     * canonical id.
+     */
+    static String jsonResponse(int results, String error, int errorInterval,
+            int canonicalInterval) {
+        List<String> canonicalIds = registrationIds(1);
+        StringBuilder response = new StringBuilder("{\"multicast_id\":6782339717028231855,");
+        int success = 0;
+        int failure = 0;
+        int canonical = 0;
+        StringBuilder jsonResults = new StringBuilder("\"results\":[");
+        for (int i = 0; i < results; i++) {
+            if (i > 0) {
+                jsonResults.append(',');
+            }
+            if (errorInterval > 0 && i % errorInterval == errorInterval - 1) {
+                jsonResults.append("{\"error\":\"").append(error).append("\"}");
+                failure++;
+            }
+            else {
+                jsonResults.append("{\"message_id\":\"0:13514514354757").append(10 + i % 90)
+                        .append("%921c249af9fd7ecd\"");
+                if (canonicalInterval > 0 && i % canonicalInterval == canonicalInterval - 1) {
+                    jsonResults.append(",\"registration_id\":\"").append(canonicalIds.get(0))
+                            .append('"');
+                    canonical++;
+                }
+                jsonResults.append('}');
+                success++;
+            }
+        }
+        jsonResults.append(']');
+        response.append("\"success\":").append(success).append(",\"failure\":").append(failure)
+                .append(",\"canonical_ids\":").append(canonical).append(',').append(jsonResults)
+                .append('}');
+        return response.toString();
+    }
+
+    /**
+     * Creates the plain text response of a message sent to a device with a canonical id.
+     */
+    static String plainResponse() {
+        return "id=0:1351451435475719%921c249af9fd7ecd\nregistration_id="
+                + registrationIds(1).get(0);
+    }
+
+}
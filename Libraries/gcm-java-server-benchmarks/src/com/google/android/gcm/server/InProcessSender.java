@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sender whose connections answer a fixed response in memory, so the whole send path runs (post
+ * included) without any network nor sleep.
+ */
+final class InProcessSender extends Sender {
+
+    private volatile byte[] response = new byte[0];
+    private volatile int    status   = 200;
+
+    InProcessSender() {
+        super("benchmark-key");
+    }
+
+    /**
+     * Sets the response of every request.
+     */
+    void respondWith(int status, String response) {
+        this.status = status;
+        this.response = response.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected HttpURLConnection getConnection(String url) throws MalformedURLException {
+        return new InProcessConnection(new URL(url), status, response);
+    }
+
+    @Override
+    void sleep(long millis) {
+        // retries are immediate
+    }
+
+    private static final class InProcessConnection extends HttpURLConnection {
+
+        private final int    status;
+        private final byte[] response;
+
+        InProcessConnection(URL url, int status, byte[] response) {
+            super(url);
+            this.status = status;
+            this.response = response;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new OutputStream() {
+
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            };
+        }
+
+        @Override
+        public int getResponseCode() {
+            return status;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(response);
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return status == 200 ? null : new ByteArrayInputStream(response);
+        }
+    }
+
+}
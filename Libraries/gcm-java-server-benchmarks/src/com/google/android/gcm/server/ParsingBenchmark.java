@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the responses of GCM, with a few errors and canonical ids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private Sender sender;
+    private String plainResponse;
+
+    @Setup
+    public void setUp() {
+        sender = new InProcessSender();
+        plainResponse = Fixtures.plainResponse();
+    }
+
+    @Benchmark
+    public MulticastResult jsonResponse(Multicast multicast) throws IOException {
+        return sender.parseJsonResponse(multicast.response);
+    }
+
+    @Benchmark
+    public Result plainResponse() throws IOException {
+        return sender.parsePlainResponse(plainResponse);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Multicast {
+
+        @Param({ "1", "1000" })
+        int    results;
+
+        String response;
+
+        @Setup
+        public void setUp() {
+            response = Fixtures.jsonResponse(results, Constants.ERROR_NOT_REGISTERED, 20, 50);
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a message end to end, from building the request to building the result, against an
+ * in-process transport.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+
+    private Message         message;
+    private InProcessSender plainSender;
+    private String          registrationId;
+
+    @Setup
+    public void setUp() {
+        message = Fixtures.message();
+        plainSender = new InProcessSender();
+        plainSender.respondWith(200, Fixtures.plainResponse());
+        registrationId = Fixtures.registrationIds(1).get(0);
+    }
+
+    @Benchmark
+    public MulticastResult multicast(Multicast multicast) throws IOException {
+        return multicast.sender.send(message, multicast.registrationIds, 3);
+    }
+
+    @Benchmark
+    public Result single() throws IOException {
+        return plainSender.send(message, registrationId, 3);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Multicast {
+
+        @Param({ "1", "1000" })
+        int             recipients;
+
+        InProcessSender sender;
+        List<String>    registrationIds;
+
+        @Setup
+        public void setUp() {
+            sender = new InProcessSender();
+            sender.respondWith(200,
+                    Fixtures.jsonResponse(recipients, Constants.ERROR_NOT_REGISTERED, 20, 50));
+            registrationIds = Fixtures.registrationIds(recipients);
+        }
+    }
+
+}
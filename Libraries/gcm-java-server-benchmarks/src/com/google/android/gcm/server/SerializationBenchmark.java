@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the body of the requests posted by {@link Sender#sendNoRetry}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private Sender  sender;
+    private Message message;
+    private String  registrationId;
+
+    @Setup
+    public void setUp() {
+        sender = new InProcessSender();
+        message = Fixtures.message();
+        registrationId = Fixtures.registrationIds(1).get(0);
+    }
+
+    @Benchmark
+    public String jsonBody(Multicast multicast) {
+        return sender.jsonRequestBody(message, multicast.registrationIds);
+    }
+
+    @Benchmark
+    public String plainBody() throws IOException {
+        return sender.plainRequestBody(message, registrationId);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Multicast {
+
+        @Param({ "1", "1000" })
+        int          recipients;
+
+        List<String> registrationIds;
+
+        @Setup
+        public void setUp() {
+            registrationIds = Fixtures.registrationIds(recipients);
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updating the status of a multicast after an attempt, where some devices have to be retried.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateStatusBenchmark {
+
+    @Param({ "1000" })
+    int                     recipients;
+
+    /**
+     * One device out of this interval is retried, 0 for none.
+     */
+    @Param({ "0", "10" })
+    int                     retryInterval;
+
+    private Sender          sender;
+    private List<String>    registrationIds;
+    private MulticastResult multicastResult;
+    private int[]           allPending;
+    private int[]           pending;
+    private Result[]        results;
+
+    @Setup
+    public void setUp() throws IOException {
+        sender = new InProcessSender();
+        registrationIds = Fixtures.registrationIds(recipients);
+        multicastResult = sender.parseJsonResponse(Fixtures.jsonResponse(recipients,
+                Constants.ERROR_UNAVAILABLE, retryInterval, 0));
+        allPending = new int[recipients];
+        for (int i = 0; i < recipients; i++) {
+            allPending[i] = i;
+        }
+        pending = new int[recipients];
+        results = new Result[recipients];
+    }
+
+    @Benchmark
+    public int updateStatus() {
+        // updateStatus compacts the pending positions in place
+        System.arraycopy(allPending, 0, pending, 0, recipients);
+        return sender.updateStatus(registrationIds, pending, recipients, results, multicastResult,
+                null);
+    }
+
+}
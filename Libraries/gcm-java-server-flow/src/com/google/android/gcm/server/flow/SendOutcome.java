@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.flow;
+
+import com.google.android.gcm.server.Result;
+
+/**
+ * Outcome of a {@link SendRequest}, as published by a {@link SenderProcessor}: either the
+ * {@link Result} returned by GCM for the device, or the exception that failed its request.
+ * Instances of this class are immutable.
+ */
+public final class SendOutcome {
+
+    private final SendRequest request;
+    private final Result      result;
+    private final Exception   exception;
+
+    private SendOutcome(SendRequest request, Result result, Exception exception) {
+        this.request = request;
+        this.result = result;
+        this.exception = exception;
+    }
+
+    static SendOutcome of(SendRequest request, Result result) {
+        return new SendOutcome(request, result, null);
+    }
+
+    static SendOutcome failed(SendRequest request, Exception exception) {
+        return new SendOutcome(request, null, exception);
+    }
+
+    /**
+     * Gets the request this is the outcome of.
+     */
+    public SendRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Gets the result returned for the device, or {@literal null} if the request failed.
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * Gets the exception that failed the request, such as an {@link java.io.IOException} once the
+     * retries are exhausted, or {@literal null} if GCM returned a result.
+     */
+    public Exception getException() {
+        return exception;
+    }
+
+    /**
+     * Checks whether the message was accepted by GCM for the device.
+     */
+    public boolean isSuccess() {
+        return result != null && result.getMessageId() != null;
+    }
+
+    @Override
+    public String toString() {
+        return "SendOutcome(registrationId=" + request.getRegistrationId() + ", "
+                + (exception == null ? "result=" + result : "exception=" + exception) + ")";
+    }
+
+}
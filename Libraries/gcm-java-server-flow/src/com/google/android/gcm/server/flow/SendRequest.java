@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.flow;
+
+import com.google.android.gcm.server.Message;
+
+import java.util.Objects;
+
+/**
+ * Message to send to a device, as consumed by a {@link SenderProcessor}. Instances of this class
+ * are immutable.
+ */
+public final class SendRequest {
+
+    private final Message message;
+    private final String  registrationId;
+
+    private SendRequest(Message message, String registrationId) {
+        this.message = Objects.requireNonNull(message, "message");
+        this.registrationId = Objects.requireNonNull(registrationId, "registrationId");
+    }
+
+    /**
+     * Creates a request to send a message to a device.
+     */
+    public static SendRequest of(Message message, String registrationId) {
+        return new SendRequest(message, registrationId);
+    }
+
+    /**
+     * Gets the message to send, requests with equal messages being batched into multicasts.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets the device the message is sent to.
+     */
+    public String getRegistrationId() {
+        return registrationId;
+    }
+
+    @Override
+    public String toString() {
+        return "SendRequest(registrationId=" + registrationId + ", message=" + message + ")";
+    }
+
+}
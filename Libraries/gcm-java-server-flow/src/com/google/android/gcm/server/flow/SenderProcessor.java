@@ -0,0 +1,599 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.flow;
+
+import com.google.android.gcm.server.BatchSizer;
+import com.google.android.gcm.server.CapacityListener;
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.MulticastResult;
+import com.google.android.gcm.server.Result;
+import com.google.android.gcm.server.Sender;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the {@link SendRequest}s of a {@link Flow.Publisher} with a {@link Sender}, and publishes
+ * their {@link SendOutcome}s to a single subscriber.
+ *
+ * <p>
+ * Requests with equal messages are batched into multicasts of up to
+ * {@link Builder#maxBatchSize(int)} devices (fewer while the batch sizer of the sender, if any,
+ * shrinks them, see {@link Sender#setBatchSizer(BatchSizer)}), flushed when full, after
+ * {@link Builder#linger(long, TimeUnit)}, or as soon as all the requested items arrived. Batches
+ * are sent on the executor with {@link Sender#trySend(Message, List, int,
+ * com.google.android.gcm.server.ResultListener)}, so they never block a thread waiting for the
+ * in-flight capacity of the sender: batches are only dispatched while the sender has enough
+ * requests and devices available, and a rejected batch is kept, with no other batch dispatched,
+ * until the sender notifies that capacity was released.
+ *
+ * <p>
+ * Backpressure works both ways: items are requested from upstream only while the sender keeps up
+ * (no batch waiting for capacity) and while fewer than {@code maxBatchSize * maxConcurrency}
+ * requests are between being received and their outcome being consumed downstream, so a slow
+ * subscriber or a slow GCM service both stop the publisher.
+ *
+ * <p>
+ * Outcomes are published in the order the requests were received, or as soon as they are available
+ * if the processor is not {@link Builder#ordered(boolean) ordered}. Instances of this class are
+ * thread-safe, and can be subscribed only once.
+ */
+public final class SenderProcessor implements Flow.Processor<SendRequest, SendOutcome> {
+
+    private final Sender                              sender;
+    private final Executor                            executor;
+    private final int                                 retries;
+    private final int                                 maxBatchSize;
+    private final int                                 maxConcurrency;
+    private final long                                lingerNanos;
+    private final boolean                             ordered;
+    private final int                                 window;
+    private final ScheduledExecutorService            timer;
+    private final CapacityListener                    capacityListener;
+    private final AtomicInteger                       wip = new AtomicInteger();
+
+    // the state below is guarded by the lock, while the subscribers are only signalled by drain()
+    private final Object                              lock = new Object();
+    private final Map<Message, Batch>                 open = new LinkedHashMap<>();
+    private final Deque<Batch>                        ready = new ArrayDeque<>();
+    // requests received and not yet published: all of them if ordered, else only the completed
+    private final Deque<Item>                         pending = new ArrayDeque<>();
+    private Flow.Subscription                         upstream;
+    private Flow.Subscriber<? super SendOutcome>      downstream;
+    private long                                      upstreamRequested;
+    private long                                      downstreamRequested;
+    private int                                       buffered;
+    private int                                       inFlight;
+    // number of capacity releases of the sender, and whether a batch waits for the next one
+    private long                                      capacityReleases;
+    private boolean                                   waitingForCapacity;
+    private ScheduledFuture<?>                        lingerTask;
+    private boolean                                   upstreamDone;
+    private Throwable                                 error;
+    private IllegalArgumentException                  requestError;
+    private boolean                                   terminated;
+
+    private SenderProcessor(Builder builder) {
+        this.sender = builder.sender;
+        this.executor = builder.executor;
+        this.retries = builder.retries;
+        this.maxBatchSize = builder.maxBatchSize;
+        this.maxConcurrency = builder.maxConcurrency;
+        this.lingerNanos = builder.lingerNanos;
+        this.ordered = builder.ordered;
+        this.window = maxBatchSize * maxConcurrency;
+        if (lingerNanos > 0) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread thread = new Thread(r, "gcm-sender-processor-linger");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            timer = scheduler;
+        }
+        else {
+            timer = null;
+        }
+        capacityListener = (availableRequests, availableRecipients) -> {
+            synchronized (lock) {
+                capacityReleases++;
+                waitingForCapacity = false;
+            }
+            drain();
+        };
+        sender.addCapacityListener(capacityListener);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription);
+        synchronized (lock) {
+            if (upstream != null || terminated) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(SendRequest request) {
+        Objects.requireNonNull(request);
+        synchronized (lock) {
+            if (terminated || upstreamDone) {
+                return;
+            }
+            upstreamRequested--;
+            buffered++;
+            Item item = new Item(request);
+            if (ordered) {
+                pending.add(item);
+            }
+            Batch batch = open.get(request.getMessage());
+            if (batch == null) {
+                batch = new Batch(request.getMessage());
+                open.put(request.getMessage(), batch);
+                if (lingerTask == null && timer != null) {
+                    lingerTask = timer.schedule(this::linger, lingerNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+            batch.items.add(item);
+            if (batch.items.size() >= batchLimit()) {
+                open.remove(request.getMessage());
+                ready.add(batch);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Objects.requireNonNull(throwable);
+        synchronized (lock) {
+            if (upstreamDone) {
+                return;
+            }
+            upstreamDone = true;
+            error = throwable;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (lock) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super SendOutcome> subscriber) {
+        Objects.requireNonNull(subscriber);
+        boolean accepted;
+        synchronized (lock) {
+            accepted = downstream == null;
+            if (accepted) {
+                downstream = subscriber;
+            }
+        }
+        if (!accepted) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Already subscribed"));
+            return;
+        }
+        subscriber.onSubscribe(new Downstream());
+        drain();
+    }
+
+    /**
+     * Gets the number of devices that fills a batch.
+     */
+    private int batchLimit() {
+        BatchSizer sizer = sender.getBatchSizer();
+        return sizer == null ? maxBatchSize : Math.min(maxBatchSize, sizer.getBatchSize());
+    }
+
+    /**
+     * Flushes the open batches once the linger time elapsed.
+     */
+    private void linger() {
+        synchronized (lock) {
+            lingerTask = null;
+            flush();
+        }
+        drain();
+    }
+
+    /**
+     * Moves the open batches to the ready ones, must be called holding the lock.
+     */
+    private void flush() {
+        ready.addAll(open.values());
+        open.clear();
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+    }
+
+    /**
+     * Publishes the available outcomes, dispatches the ready batches and requests more items,
+     * looping while other threads signalled changes in the meantime so the subscribers are never
+     * called concurrently.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            drainOnce();
+            missed = wip.addAndGet(-missed);
+        }
+        while (missed != 0);
+    }
+
+    private void drainOnce() {
+        Flow.Subscriber<? super SendOutcome> subscriber;
+        Flow.Subscription subscription;
+        List<SendOutcome> outcomes = new ArrayList<>();
+        List<Batch> batches = new ArrayList<>();
+        long request = 0;
+        boolean complete = false;
+        Throwable failure;
+        boolean cancelUpstream = false;
+        synchronized (lock) {
+            subscriber = downstream;
+            subscription = upstream;
+            if (terminated || subscriber == null) {
+                return;
+            }
+            while (downstreamRequested > 0 && !pending.isEmpty()
+                    && pending.peek().outcome != null) {
+                outcomes.add(pending.poll().outcome);
+                downstreamRequested--;
+                buffered--;
+            }
+            if (upstreamRequested == 0 || upstreamDone) {
+                // nothing more is coming for now, so do not wait for the open batches to fill
+                flush();
+            }
+            if (!waitingForCapacity) {
+                dispatch(batches);
+            }
+            if (subscription != null && !upstreamDone && ready.isEmpty()
+                    && inFlight < maxConcurrency) {
+                request = window - buffered - upstreamRequested;
+                if (request > 0) {
+                    upstreamRequested += request;
+                }
+            }
+            failure = requestError != null ? requestError : error;
+            if (requestError != null || upstreamDone && buffered == 0) {
+                terminated = true;
+                complete = true;
+                cancelUpstream = !upstreamDone;
+            }
+        }
+        for (SendOutcome outcome : outcomes) {
+            subscriber.onNext(outcome);
+        }
+        for (Batch batch : batches) {
+            try {
+                executor.execute(() -> send(batch));
+            }
+            catch (RejectedExecutionException e) {
+                completed(batch, e);
+            }
+        }
+        if (request > 0) {
+            subscription.request(request);
+        }
+        if (complete) {
+            if (cancelUpstream && subscription != null) {
+                // invalid downstream request: stop the upstream too
+                subscription.cancel();
+            }
+            shutdown();
+            if (failure == null) {
+                subscriber.onComplete();
+            }
+            else {
+                subscriber.onError(failure);
+            }
+        }
+    }
+
+    /**
+     * Takes the ready batches the sender has the capacity to send, holding the lock.
+     */
+    private void dispatch(List<Batch> batches) {
+        int maxRecipients = sender.getConfig().getMaxInFlightRecipients();
+        int availableRequests = sender.getAvailableRequests();
+        int availableRecipients = sender.getAvailableRecipients();
+        while (!ready.isEmpty() && inFlight < maxConcurrency && availableRequests > 0) {
+            int recipients = ready.peek().items.size();
+            if (maxRecipients > 0) {
+                // a send takes at most all the device permits of the sender
+                recipients = Math.min(recipients, maxRecipients);
+            }
+            if (recipients > availableRecipients) {
+                break;
+            }
+            batches.add(ready.poll());
+            inFlight++;
+            availableRequests--;
+            availableRecipients -= recipients;
+        }
+    }
+
+    /**
+     * Sends a batch, on a thread of the executor.
+     */
+    private void send(Batch batch) {
+        long releases;
+        synchronized (lock) {
+            releases = capacityReleases;
+        }
+        List<Result> results;
+        try {
+            if (batch.items.size() == 1) {
+                Result result = sender.trySend(batch.message,
+                        batch.items.get(0).request.getRegistrationId(), retries);
+                results = result == null ? null : List.of(result);
+            }
+            else {
+                List<String> regIds = new ArrayList<>(batch.items.size());
+                for (Item item : batch.items) {
+                    regIds.add(item.request.getRegistrationId());
+                }
+                MulticastResult result = sender.trySend(batch.message, regIds, retries, null);
+                results = result == null ? null : result.getResults();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            completed(batch, e);
+            return;
+        }
+        if (results == null) {
+            // rejected for lack of capacity (or behind blocked sends), retried once the sender
+            // releases some, unless it already did since the attempt
+            synchronized (lock) {
+                inFlight--;
+                ready.addFirst(batch);
+                waitingForCapacity = capacityReleases == releases;
+            }
+            drain();
+            return;
+        }
+        synchronized (lock) {
+            for (int i = 0; i < batch.items.size(); i++) {
+                Item item = batch.items.get(i);
+                // a multicast past its deadline only returns the results it got
+                item.outcome = i < results.size() ? SendOutcome.of(item.request, results.get(i))
+                        : SendOutcome.failed(item.request, new IOException("No result for device"));
+                if (!ordered) {
+                    pending.add(item);
+                }
+            }
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * Completes all the requests of a batch that failed.
+     */
+    private void completed(Batch batch, Exception exception) {
+        synchronized (lock) {
+            for (Item item : batch.items) {
+                item.outcome = SendOutcome.failed(item.request, exception);
+                if (!ordered) {
+                    pending.add(item);
+                }
+            }
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * Releases the resources of the processor once it is terminated.
+     */
+    private void shutdown() {
+        sender.removeCapacityListener(capacityListener);
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Subscription of the downstream subscriber.
+     */
+    private final class Downstream implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            synchronized (lock) {
+                if (n <= 0) {
+                    requestError = new IllegalArgumentException("Non-positive request: " + n);
+                }
+                else {
+                    downstreamRequested = downstreamRequested + n < 0 ? Long.MAX_VALUE
+                            : downstreamRequested + n;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            Flow.Subscription subscription;
+            synchronized (lock) {
+                if (terminated) {
+                    return;
+                }
+                terminated = true;
+                subscription = upstream;
+                open.clear();
+                ready.clear();
+                pending.clear();
+            }
+            if (subscription != null) {
+                subscription.cancel();
+            }
+            shutdown();
+        }
+    }
+
+    /**
+     * Request received from upstream, with its outcome once sent.
+     */
+    private static final class Item {
+
+        private final SendRequest request;
+        private SendOutcome       outcome;
+
+        Item(SendRequest request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * Requests with the same message, sent as one multicast.
+     */
+    private static final class Batch {
+
+        private final Message    message;
+        private final List<Item> items = new ArrayList<>();
+
+        Batch(Message message) {
+            this.message = message;
+        }
+    }
+
+    /**
+     * Builder of {@link SenderProcessor}s.
+     */
+    public static final class Builder {
+
+        private final Sender   sender;
+        private final Executor executor;
+        private int            retries        = 5;
+        private int            maxBatchSize   = 100;
+        private int            maxConcurrency = 4;
+        private long           lingerNanos    = TimeUnit.MILLISECONDS.toNanos(5);
+        private boolean        ordered        = true;
+
+        /**
+         * Creates a builder.
+         *
+         * @param sender sender used to send the messages, whose in-flight limits (see
+         *            {@link com.google.android.gcm.server.SenderConfig}) are the transport
+         *            capacity the processor waits for.
+         * @param executor executor running the sends, which block their thread until done.
+         */
+        public Builder(Sender sender, Executor executor) {
+            this.sender = Objects.requireNonNull(sender, "sender");
+            this.executor = Objects.requireNonNull(executor, "executor");
+        }
+
+        /**
+         * Sets the number of retries of each batch in case of service unavailability errors,
+         * by default 5.
+         */
+        public Builder retries(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("retries must be non-negative: " + value);
+            }
+            retries = value;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of devices of a multicast, by default 100 and at most
+         * {@link Constants#MAX_MULTICAST_SIZE}.
+         */
+        public Builder maxBatchSize(int value) {
+            if (value < 1 || value > Constants.MAX_MULTICAST_SIZE) {
+                throw new IllegalArgumentException("Invalid batch size: " + value);
+            }
+            maxBatchSize = value;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of batches sent at the same time, by default 4.
+         */
+        public Builder maxConcurrency(int value) {
+            if (value < 1) {
+                throw new IllegalArgumentException("Invalid concurrency: " + value);
+            }
+            maxConcurrency = value;
+            return this;
+        }
+
+        /**
+         * Sets how long a batch waits for more requests with the same message before being sent,
+         * by default 5 milliseconds. With 0, batches only fill with the items already requested.
+         */
+        public Builder linger(long value, TimeUnit unit) {
+            if (value < 0) {
+                throw new IllegalArgumentException("linger must be non-negative: " + value);
+            }
+            lingerNanos = unit.toNanos(value);
+            return this;
+        }
+
+        /**
+         * Sets whether outcomes are published in the order the requests were received (the
+         * default), or as soon as they are available.
+         */
+        public Builder ordered(boolean value) {
+            ordered = value;
+            return this;
+        }
+
+        public SenderProcessor build() {
+            return new SenderProcessor(this);
+        }
+    }
+
+}
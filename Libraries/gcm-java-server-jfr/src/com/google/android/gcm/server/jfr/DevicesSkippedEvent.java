@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Devices not sent because of the dead token filter or the device rate limiter of a sender.
+ */
+@Name("com.google.android.gcm.server.DevicesSkipped")
+@Label("GCM Devices Skipped")
+@Category("GCM")
+@Description("Devices not sent because they are known to be not registered or they exceeded "
+        + "their rate limit")
+@StackTrace(false)
+final class DevicesSkippedEvent extends jdk.jfr.Event {
+
+    @Label("Not Registered")
+    @Description("Devices known to be not registered")
+    int notRegistered;
+
+    @Label("Rate Limited")
+    @Description("Devices that exceeded their rate limit")
+    int rateLimited;
+
+}
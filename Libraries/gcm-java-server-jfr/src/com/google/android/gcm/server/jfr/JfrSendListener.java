@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.jfr;
+
+import com.google.android.gcm.server.GcmError;
+import com.google.android.gcm.server.Result;
+import com.google.android.gcm.server.SendAdapter;
+import com.google.android.gcm.server.Sender;
+
+import jdk.jfr.EventType;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Emits Java Flight Recorder events for the requests made by a {@link Sender}, its retries and the
+ * devices it skips, so they can be correlated with GC pauses and thread contention in a recording.
+ *
+ * <p>
+ * The events are in the {@code GCM} category and are enabled through a settings profile, such as
+ * the {@code gcm.jfc} file of this module:
+ *
+ * <pre>
+ * <code>
+ * sender.setSendListener(new JfrSendListener());
+ * </code>
+ * </pre>
+ *
+ * When the events are disabled, no event is created. Instances of this class are thread-safe and
+ * can be shared by many senders.
+ */
+public class JfrSendListener extends SendAdapter {
+
+    private static final EventType REQUEST         = EventType.getEventType(RequestEvent.class);
+    private static final EventType RESPONSE_PARSED = EventType
+            .getEventType(ResponseParsedEvent.class);
+    private static final EventType RETRY_BACKOFF   = EventType
+            .getEventType(RetryBackoffEvent.class);
+    private static final EventType DEVICES_SKIPPED = EventType
+            .getEventType(DevicesSkippedEvent.class);
+
+    // events in progress on each thread, as all the events of a send are on the same thread
+    private final ThreadLocal<RequestEvent>        requests  = new ThreadLocal<>();
+    private final ThreadLocal<ResponseParsedEvent> responses = new ThreadLocal<>();
+
+    @Override
+    public void postStarted(String url, int recipients, long bytes) {
+        if (REQUEST.isEnabled()) {
+            RequestEvent event = new RequestEvent();
+            event.url = url;
+            event.recipients = recipients;
+            event.requestBytes = bytes;
+            event.begin();
+            requests.set(event);
+        }
+    }
+
+    @Override
+    public void requestFailed(IOException e, long nanos) {
+        RequestEvent event = requests.get();
+        if (event != null) {
+            requests.remove();
+            event.failure = e.toString();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void responseReceived(int status, long bytes, long nanos) {
+        RequestEvent event = requests.get();
+        if (event != null) {
+            requests.remove();
+            event.status = status;
+            event.responseBytes = bytes;
+            event.commit();
+        }
+        if (status == 200 && RESPONSE_PARSED.isEnabled()) {
+            ResponseParsedEvent parseEvent = new ResponseParsedEvent();
+            parseEvent.begin();
+            responses.set(parseEvent);
+        }
+        else {
+            // the body of other responses is not parsed
+            responses.remove();
+        }
+    }
+
+    @Override
+    public void responseParsed(List<Result> results, long nanos) {
+        ResponseParsedEvent event = responses.get();
+        if (event != null) {
+            responses.remove();
+            int errors = 0;
+            for (int i = 0; i < results.size(); i++) {
+                GcmError error = results.get(i).getError();
+                if (error != null) {
+                    errors++;
+                }
+            }
+            event.results = results.size();
+            event.errors = errors;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void retryScheduled(int attempt, int recipients, long backoffMillis) {
+        if (RETRY_BACKOFF.isEnabled()) {
+            RetryBackoffEvent event = new RetryBackoffEvent();
+            event.attempt = attempt;
+            event.recipients = recipients;
+            event.backoff = backoffMillis;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void devicesSkipped(int notRegistered, int rateLimited) {
+        if (DEVICES_SKIPPED.isEnabled()) {
+            DevicesSkippedEvent event = new DevicesSkippedEvent();
+            event.notRegistered = notRegistered;
+            event.rateLimited = rateLimited;
+            event.commit();
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Request posted to GCM, lasting until its response is read or it fails.
+ */
+@Name("com.google.android.gcm.server.Request")
+@Label("GCM Request")
+@Category("GCM")
+@Description("Request posted to GCM, until its response is read")
+@StackTrace(false)
+final class RequestEvent extends jdk.jfr.Event {
+
+    @Label("URL")
+    String url;
+
+    @Label("Recipients")
+    @Description("Number of devices of the request")
+    int    recipients;
+
+    @Label("Request Size")
+    @DataAmount
+    long   requestBytes;
+
+    @Label("Status")
+    @Description("HTTP status of the response, or 0 if the request failed")
+    int    status;
+
+    @Label("Response Size")
+    @DataAmount
+    long   responseBytes;
+
+    @Label("Failure")
+    @Description("Exception of a request that failed without a response")
+    String failure;
+
+}
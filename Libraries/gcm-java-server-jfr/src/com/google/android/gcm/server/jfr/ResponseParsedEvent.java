@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Parsing of a successful response of GCM.
+ */
+@Name("com.google.android.gcm.server.ResponseParsed")
+@Label("GCM Response Parsed")
+@Category("GCM")
+@Description("Parsing of a successful response of GCM")
+@StackTrace(false)
+final class ResponseParsedEvent extends jdk.jfr.Event {
+
+    @Label("Results")
+    @Description("Number of results of the response, one per device")
+    int results;
+
+    @Label("Errors")
+    @Description("Number of results with an error, including the retryable ones")
+    int errors;
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Retry scheduled by a sender, which sleeps before trying again.
+ */
+@Name("com.google.android.gcm.server.RetryBackoff")
+@Label("GCM Retry Backoff")
+@Category("GCM")
+@Description("Retry scheduled after an attempt, sleeping before trying again")
+final class RetryBackoffEvent extends jdk.jfr.Event {
+
+    @Label("Attempt")
+    @Description("Number of the attempt being retried, starting at 1")
+    int  attempt;
+
+    @Label("Recipients")
+    @Description("Number of devices being retried")
+    int  recipients;
+
+    @Label("Backoff")
+    @Timespan(Timespan.MILLISECONDS)
+    long backoff;
+
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.loadtest;
+
+import com.google.android.gcm.server.Constants;
+import com.google.android.gcm.server.Sender;
+import com.google.android.gcm.server.SenderConfig;
+
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sender whose requests are answered by a script instead of GCM, on a {@link VirtualClock}.
+ *
+ * <p>
+ * Each request plays the next scripted response; once the script is exhausted, it plays the
+ * response of the outage window covering the current time of the clock, if any, or else the
+ * default response ({@link ScriptedResponse#ok()} unless changed). As the clock is virtual and
+ * the jitter of the retries is seeded, the same script always leads to the same retries, and
+ * hours of outages are replayed in milliseconds. Example:
+ *
+ * <pre>
+ * <code>
+ * VirtualClock clock = new VirtualClock();
+ * FaultInjectingSender sender = new FaultInjectingSender(clock, 42)
+ *    .script(ScriptedResponse.status(503), 2)
+ *    .script(ScriptedResponse.partial(Constants.ERROR_UNAVAILABLE, 0, 3))
+ *    .script(ScriptedResponse.ioException("connection reset").slowRead(30000));
+ * MulticastResult result = sender.send(message, devices, 5);
+ * </code>
+ * </pre>
+ */
+public class FaultInjectingSender extends Sender {
+
+    private final VirtualClock            clock;
+    private final Deque<ScriptedResponse> script          = new ArrayDeque<ScriptedResponse>();
+    private final List<Outage>            outages         = new ArrayList<Outage>();
+    private ScriptedResponse              defaultResponse = ScriptedResponse.ok();
+    private final AtomicLong              requests        = new AtomicLong();
+    private final AtomicLong              recipients      = new AtomicLong();
+    private final AtomicLong              failedRequests  = new AtomicLong();
+    private final AtomicLong              messageIds      = new AtomicLong();
+
+    /**
+     * Creates a sender on a virtual clock.
+     *
+     * @param clock clock used to wait between retries, which also times the slow reads.
+     * @param seed seed of the jitter of the retries.
+     */
+    public FaultInjectingSender(VirtualClock clock, long seed) {
+        this(clock, new SenderConfig.Builder().build(), seed);
+    }
+
+    /**
+     * Creates a sender on a virtual clock, with the timeouts and deadline of a configuration;
+     * reads slower than the read timeout fail with a {@link SocketTimeoutException}.
+     *
+     * @param clock clock used to wait between retries, which also times the slow reads.
+     * @param config configuration of the sender, whose endpoint is ignored.
+     * @param seed seed of the jitter of the retries.
+     */
+    public FaultInjectingSender(VirtualClock clock, SenderConfig config, long seed) {
+        super("fault-injection", config, new Random(seed));
+        this.clock = clock;
+        setClock(clock);
+        // the shared retry budget follows the system clock, not the virtual one
+        setRetryBudget(null);
+    }
+
+    /**
+     * Adds a response at the end of the script.
+     */
+    public FaultInjectingSender script(ScriptedResponse response) {
+        return script(response, 1);
+    }
+
+    /**
+     * Adds a response played the given number of times at the end of the script.
+     */
+    public synchronized FaultInjectingSender script(ScriptedResponse response, int times) {
+        nonNullResponse(response);
+        for (int i = 0; i < times; i++) {
+            script.add(response);
+        }
+        return this;
+    }
+
+    /**
+     * Plays a response to the requests sent between two times of the clock, in milliseconds since
+     * it was created, once the script is exhausted.
+     */
+    public synchronized FaultInjectingSender outage(long fromMillis, long toMillis,
+            ScriptedResponse response) {
+        if (toMillis < fromMillis) {
+            throw new IllegalArgumentException("outage cannot end before it starts");
+        }
+        outages.add(new Outage(TimeUnit.MILLISECONDS.toNanos(fromMillis),
+                TimeUnit.MILLISECONDS.toNanos(toMillis), nonNullResponse(response)));
+        return this;
+    }
+
+    /**
+     * Sets the response played when the script is exhausted and there is no outage.
+     */
+    public synchronized FaultInjectingSender otherwise(ScriptedResponse response) {
+        defaultResponse = nonNullResponse(response);
+        return this;
+    }
+
+    /**
+     * Gets the number of requests received, including the failed ones.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of devices of all the requests received.
+     */
+    public long getRecipients() {
+        return recipients.get();
+    }
+
+    /**
+     * Gets the number of requests failed as a whole, by an HTTP status or an exception.
+     */
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    @Override
+    protected HttpURLConnection getConnection(String url) throws IOException {
+        return new ScriptedConnection(new URL(url));
+    }
+
+    private synchronized ScriptedResponse nextResponse() {
+        ScriptedResponse response = script.poll();
+        if (response != null) {
+            return response;
+        }
+        long now = clock.nanoTime();
+        for (Outage outage : outages) {
+            if (now >= outage.from && now < outage.to) {
+                return outage.response;
+            }
+        }
+        return defaultResponse;
+    }
+
+    private static ScriptedResponse nonNullResponse(ScriptedResponse response) {
+        if (response == null) {
+            throw new IllegalArgumentException("response cannot be null");
+        }
+        return response;
+    }
+
+    /**
+     * Renders the body of a successful response, in the format of the request.
+     */
+    private String body(boolean json, List<?> registrationIds, ScriptedResponse response) {
+        if (!json) {
+            String error = response.errorAt(0);
+            return error == null ? Constants.TOKEN_MESSAGE_ID + "=" + nextMessageId()
+                    : Constants.TOKEN_ERROR + "=" + error;
+        }
+        int success = 0;
+        int failure = 0;
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < registrationIds.size(); i++) {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            String error = response.errorAt(i);
+            if (error == null) {
+                result.put(Constants.JSON_MESSAGE_ID, nextMessageId());
+                success++;
+            }
+            else {
+                result.put(Constants.JSON_ERROR, error);
+                failure++;
+            }
+            results.add(result);
+        }
+        Map<String, Object> body = new LinkedHashMap<String, Object>();
+        body.put(Constants.JSON_MULTICAST_ID, messageIds.incrementAndGet());
+        body.put(Constants.JSON_SUCCESS, success);
+        body.put(Constants.JSON_FAILURE, failure);
+        body.put(Constants.JSON_CANONICAL_IDS, 0);
+        body.put(Constants.JSON_RESULTS, results);
+        return JSONValue.toJSONString(body);
+    }
+
+    private String nextMessageId() {
+        return "0:" + messageIds.incrementAndGet();
+    }
+
+    private static final class Outage {
+
+        private final long             from;
+        private final long             to;
+        private final ScriptedResponse response;
+
+        Outage(long from, long to, ScriptedResponse response) {
+            this.from = from;
+            this.to = to;
+            this.response = response;
+        }
+    }
+
+    /**
+     * Connection playing the next scripted response once the request was written.
+     */
+    private final class ScriptedConnection extends HttpURLConnection {
+
+        private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+        private ScriptedResponse            response;
+        private byte[]                      body;
+
+        ScriptedConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return request;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if (response == null) {
+                play();
+            }
+            return response.getStatus();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (getResponseCode() != 200) {
+                throw new IOException("Server returned HTTP response code: " + responseCode);
+            }
+            int timeout = getReadTimeout();
+            if (timeout > 0 && response.getReadMillis() > timeout) {
+                clock.advance(timeout, TimeUnit.MILLISECONDS);
+                throw new SocketTimeoutException("Read timed out");
+            }
+            return slowRead();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return response == null || response.getStatus() == 200 ? null : slowRead();
+        }
+
+        private void play() throws IOException {
+            ScriptedResponse next = nextResponse();
+            String content = new String(request.toByteArray(), "UTF-8");
+            boolean json = String.valueOf(getRequestProperty("Content-Type"))
+                    .startsWith("application/json");
+            List<?> registrationIds = null;
+            if (json) {
+                Object parsed = JSONValue.parse(content);
+                Object ids = parsed instanceof Map ? ((Map<?, ?>) parsed)
+                        .get(Constants.JSON_REGISTRATION_IDS) : null;
+                registrationIds = ids instanceof List ? (List<?>) ids : new ArrayList<Object>();
+                recipients.addAndGet(registrationIds.size());
+            }
+            else {
+                recipients.incrementAndGet();
+            }
+            requests.incrementAndGet();
+            if (next.getIoExceptionMessage() != null) {
+                failedRequests.incrementAndGet();
+                clock.advance(next.getReadMillis(), TimeUnit.MILLISECONDS);
+                throw new IOException(next.getIoExceptionMessage());
+            }
+            response = next;
+            responseCode = next.getStatus();
+            if (responseCode == 200) {
+                body = body(json, registrationIds, next).getBytes("UTF-8");
+            }
+            else {
+                failedRequests.incrementAndGet();
+                body = new byte[0];
+            }
+        }
+
+        private InputStream slowRead() {
+            clock.advance(response.getReadMillis(), TimeUnit.MILLISECONDS);
+            return new ByteArrayInputStream(body);
+        }
+    }
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.loadtest;
+
+import com.google.android.gcm.server.Constants;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.simple.JSONValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process HTTP server answering like the GCM send endpoint
+ * ({@link Constants#GCM_SEND_ENDPOINT}), to test senders without sending anything to Google.
+ *
+ * <p>
+ * Plain text and JSON requests are answered like GCM does, with multicast ids, canonical ids and
+ * errors on each result, at configurable rates. Whole requests can also fail with a 503 status,
+ * with a {@code Retry-After} header, and every response is delayed by a configurable latency.
+ * Example:
+ *
+ * <pre>
+ * <code>
+ * GcmSimulator simulator = new GcmSimulator.Builder()
+ *    .latency(LatencyDistribution.logNormal(50, 0.5))
+ *    .unavailableRate(0.01)
+ *    .errorRate(Constants.ERROR_NOT_REGISTERED, 0.05)
+ *    .start();
+ * </code>
+ * </pre>
+ */
+public final class GcmSimulator implements Closeable {
+
+    private static final String           PATH        = "/gcm/send";
+    private static final String           UTF8        = "UTF-8";
+
+    private final HttpServer              server;
+    private final ExecutorService         executor;
+    private final LatencyDistribution     latency;
+    private final double                  unavailableRate;
+    private final int                     retryAfterSeconds;
+    private final double                  canonicalIdRate;
+    private final Map<String, Double>     errorRates;
+    private final AtomicLong              requests    = new AtomicLong();
+    private final AtomicLong              recipients  = new AtomicLong();
+    private final AtomicLong              unavailable = new AtomicLong();
+    private final AtomicLong              messageIds  = new AtomicLong();
+
+    public static final class Builder {
+
+        private int                       port;
+        private LatencyDistribution       latency           = LatencyDistribution.fixed(0);
+        private double                    unavailableRate;
+        private int                       retryAfterSeconds = -1;
+        private double                    canonicalIdRate;
+        private final Map<String, Double> errorRates        = new LinkedHashMap<String, Double>();
+
+        /**
+         * Sets the port to listen to, by default any free port.
+         */
+        public Builder port(int value) {
+            port = value;
+            return this;
+        }
+
+        /**
+         * Sets the latency added to each response (none by default).
+         */
+        public Builder latency(LatencyDistribution value) {
+            if (value == null) {
+                throw new IllegalArgumentException("latency cannot be null");
+            }
+            latency = value;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of the requests answered with a 503 status (none by default).
+         */
+        public Builder unavailableRate(double value) {
+            unavailableRate = checkRate(value);
+            return this;
+        }
+
+        /**
+         * Sets the {@code Retry-After} header of the 503 responses, in seconds (no header by
+         * default).
+         */
+        public Builder retryAfter(int seconds) {
+            retryAfterSeconds = seconds;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of the successful results with a canonical registration id.
+         */
+        public Builder canonicalIdRate(double value) {
+            canonicalIdRate = checkRate(value);
+            return this;
+        }
+
+        /**
+         * Sets the fraction of the results failing with an error code (see the {@code ERROR_}
+         * constants of {@link Constants}).
+         */
+        public Builder errorRate(String errorCode, double value) {
+            if (errorCode == null) {
+                throw new IllegalArgumentException("errorCode cannot be null");
+            }
+            errorRates.put(errorCode, checkRate(value));
+            return this;
+        }
+
+        /**
+         * Starts the simulator.
+         */
+        public GcmSimulator start() throws IOException {
+            double totalErrorRate = 0;
+            for (double rate : errorRates.values()) {
+                totalErrorRate += rate;
+            }
+            if (totalErrorRate > 1) {
+                throw new IllegalArgumentException("error rates cannot add up to more than 1");
+            }
+            return new GcmSimulator(this);
+        }
+
+        private static double checkRate(double value) {
+            if (value < 0 || value > 1) {
+                throw new IllegalArgumentException("rate must be between 0 and 1: " + value);
+            }
+            return value;
+        }
+    }
+
+    private GcmSimulator(Builder builder) throws IOException {
+        latency = builder.latency;
+        unavailableRate = builder.unavailableRate;
+        retryAfterSeconds = builder.retryAfterSeconds;
+        canonicalIdRate = builder.canonicalIdRate;
+        errorRates = Collections.unmodifiableMap(new LinkedHashMap<String, Double>(
+                builder.errorRates));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                builder.port), 1024);
+        // responses are delayed by sleeping, so each request needs its own thread
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(PATH, new SendHandler());
+        server.start();
+    }
+
+    /**
+     * Gets the URL of the send endpoint of this simulator.
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Gets the number of requests received.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Gets the number of devices of all the requests received.
+     */
+    public long getRecipients() {
+        return recipients.get();
+    }
+
+    /**
+     * Gets the number of requests answered with a 503 status.
+     */
+    public long getUnavailableResponses() {
+        return unavailable.get();
+    }
+
+    /**
+     * Stops the simulator, without waiting for the requests being answered.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private final class SendHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String body = read(exchange.getRequestBody());
+                requests.incrementAndGet();
+                Random random = ThreadLocalRandom.current();
+                long delay = latency.nextMillis(random);
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    respond(exchange, 405, "text/plain", "Method not allowed");
+                }
+                else if (!String.valueOf(exchange.getRequestHeaders().getFirst("Authorization"))
+                        .startsWith("key=")) {
+                    respond(exchange, 401, "text/plain", "Unauthorized");
+                }
+                else if (random.nextDouble() < unavailableRate) {
+                    unavailable.incrementAndGet();
+                    if (retryAfterSeconds >= 0) {
+                        exchange.getResponseHeaders().set("Retry-After",
+                                Integer.toString(retryAfterSeconds));
+                    }
+                    respond(exchange, 503, "text/plain", "Service unavailable");
+                }
+                else if (String.valueOf(exchange.getRequestHeaders().getFirst("Content-Type"))
+                        .startsWith("application/json")) {
+                    handleJson(exchange, body, random);
+                }
+                else {
+                    handlePlain(exchange, body, random);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                exchange.close();
+            }
+        }
+
+        private void handleJson(HttpExchange exchange, String body, Random random)
+                throws IOException {
+            Object request = JSONValue.parse(body);
+            Object registrationIds = request instanceof Map ? ((Map<?, ?>) request)
+                    .get(Constants.JSON_REGISTRATION_IDS) : null;
+            if (!(registrationIds instanceof List) || ((List<?>) registrationIds).isEmpty()) {
+                respond(exchange, 400, "text/plain", "Missing registration_ids field");
+                return;
+            }
+            List<?> ids = (List<?>) registrationIds;
+            recipients.addAndGet(ids.size());
+            int success = 0;
+            int failure = 0;
+            int canonicalIds = 0;
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(ids.size());
+            for (Object id : ids) {
+                Map<String, Object> result = new LinkedHashMap<String, Object>();
+                String error = nextError(random);
+                if (error != null) {
+                    result.put(Constants.JSON_ERROR, error);
+                    failure++;
+                }
+                else {
+                    result.put(Constants.JSON_MESSAGE_ID, nextMessageId());
+                    if (random.nextDouble() < canonicalIdRate) {
+                        result.put(Constants.TOKEN_CANONICAL_REG_ID, canonicalIdOf(id));
+                        canonicalIds++;
+                    }
+                    success++;
+                }
+                results.add(result);
+            }
+            Map<String, Object> response = new LinkedHashMap<String, Object>();
+            response.put(Constants.JSON_MULTICAST_ID, messageIds.incrementAndGet());
+            response.put(Constants.JSON_SUCCESS, success);
+            response.put(Constants.JSON_FAILURE, failure);
+            response.put(Constants.JSON_CANONICAL_IDS, canonicalIds);
+            response.put(Constants.JSON_RESULTS, results);
+            respond(exchange, 200, "application/json", JSONValue.toJSONString(response));
+        }
+
+        private void handlePlain(HttpExchange exchange, String body, Random random)
+                throws IOException {
+            String registrationId = null;
+            for (String parameter : body.split("&")) {
+                if (parameter.startsWith(Constants.PARAM_REGISTRATION_ID + "=")) {
+                    registrationId = decode(parameter.substring(
+                            Constants.PARAM_REGISTRATION_ID.length() + 1));
+                }
+            }
+            if (registrationId == null) {
+                respond(exchange, 200, "text/plain", Constants.TOKEN_ERROR + "="
+                        + Constants.ERROR_MISSING_REGISTRATION);
+                return;
+            }
+            recipients.incrementAndGet();
+            String error = nextError(random);
+            String response;
+            if (error != null) {
+                response = Constants.TOKEN_ERROR + "=" + error;
+            }
+            else {
+                response = Constants.TOKEN_MESSAGE_ID + "=" + nextMessageId();
+                if (random.nextDouble() < canonicalIdRate) {
+                    response += "\n" + Constants.TOKEN_CANONICAL_REG_ID + "="
+                            + canonicalIdOf(registrationId);
+                }
+            }
+            respond(exchange, 200, "text/plain", response);
+        }
+
+        private String nextError(Random random) {
+            double value = random.nextDouble();
+            for (Map.Entry<String, Double> entry : errorRates.entrySet()) {
+                value -= entry.getValue();
+                if (value < 0) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        private String nextMessageId() {
+            return "0:" + messageIds.incrementAndGet() + "%921c249af9fd7ecd";
+        }
+
+        private String canonicalIdOf(Object registrationId) {
+            return registrationId + "-canonical";
+        }
+
+        private void respond(HttpExchange exchange, int status, String contentType, String body)
+                throws IOException {
+            byte[] bytes = body.getBytes(UTF8);
+            exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            try {
+                out.write(bytes);
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString(UTF8);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, UTF8);
+    }
+
+}
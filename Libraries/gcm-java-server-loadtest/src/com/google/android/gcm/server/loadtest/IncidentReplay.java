@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.loadtest;
+
+import com.google.android.gcm.server.LatencyHistogram;
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.MulticastResult;
+import com.google.android.gcm.server.Result;
+import com.google.android.gcm.server.RetryBudget;
+
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays hours of traffic through outages on a {@link FaultInjectingSender}, in virtual time, and
+ * reports as JSON how much the retries amplify the traffic and how fast they converge once the
+ * outages end.
+ *
+ * <p>
+ * Messages are sent one at a time at a fixed rate of virtual time; a message waiting for its
+ * retries delays the next ones, as a single sending thread would. Options (all optional):
+ *
+ * <pre>
+ * --rate &lt;messages per minute&gt;      (default 60)
+ * --hours &lt;hours of traffic&gt;         (default 24)
+ * --recipients &lt;devices per message&gt; (default 1, more than one sends multicast messages)
+ * --retries &lt;retries per message&gt;    (default 5)
+ * --seed &lt;seed of the jitter&gt;        (default 0)
+ * --retry-budget &lt;ratio&gt;             (retries per first attempt over a 10 seconds window,
+ *                                    plus 10 retries; no budget by default)
+ * --outage &lt;from&gt;:&lt;to&gt;:&lt;response&gt;
+ *                                    (minutes of the outage and its response: an HTTP status,
+ *                                    io for an IOException, or error:&lt;code&gt; for an
+ *                                    error on every device; can be repeated)
+ * </pre>
+ */
+public final class IncidentReplay {
+
+    private int                rate        = 60;
+    private int                hours       = 24;
+    private int                recipients  = 1;
+    private int                retries     = 5;
+    private long               seed;
+    private double             retryBudget = -1;
+    private final List<String> outages     = new ArrayList<String>();
+
+    private IncidentReplay(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--rate":
+                    rate = Integer.parseInt(value);
+                    break;
+                case "--hours":
+                    hours = Integer.parseInt(value);
+                    break;
+                case "--recipients":
+                    recipients = Integer.parseInt(value);
+                    break;
+                case "--retries":
+                    retries = Integer.parseInt(value);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--retry-budget":
+                    retryBudget = Double.parseDouble(value);
+                    break;
+                case "--outage":
+                    outages.add(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        if (rate <= 0 || hours <= 0 || recipients <= 0 || retries < 0) {
+            throw new IllegalArgumentException("Invalid options");
+        }
+    }
+
+    /**
+     * Adds an outage, given as its start and end in minutes and its response, to a sender.
+     *
+     * @return the end of the outage, in nanoseconds of the clock of the sender.
+     */
+    private static long addOutage(FaultInjectingSender sender, String spec) {
+        String[] parts = spec.split(":", 3);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Invalid outage: " + spec);
+        }
+        ScriptedResponse response;
+        if (parts[2].equals("io")) {
+            response = ScriptedResponse.ioException("Simulated network failure");
+        }
+        else if (parts[2].startsWith("error:")) {
+            response = ScriptedResponse.error(parts[2].substring("error:".length()));
+        }
+        else {
+            response = ScriptedResponse.status(Integer.parseInt(parts[2]));
+        }
+        long from = TimeUnit.MINUTES.toMillis(Long.parseLong(parts[0]));
+        long to = TimeUnit.MINUTES.toMillis(Long.parseLong(parts[1]));
+        sender.outage(from, to, response);
+        return TimeUnit.MILLISECONDS.toNanos(to);
+    }
+
+    public static void main(String[] args) {
+        IncidentReplay replay;
+        try {
+            replay = new IncidentReplay(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("See the documentation of " + IncidentReplay.class.getName()
+                    + " for the options");
+            System.exit(2);
+            return;
+        }
+        System.out.println(replay.run());
+    }
+
+    private String run() {
+        VirtualClock clock = new VirtualClock();
+        FaultInjectingSender sender = new FaultInjectingSender(clock, seed);
+        RetryBudget budget = null;
+        if (retryBudget >= 0) {
+            budget = new RetryBudget(retryBudget, 10, 10, TimeUnit.SECONDS, clock);
+            sender.setRetryBudget(budget);
+        }
+        long lastOutageEnd = 0;
+        for (String outage : outages) {
+            lastOutageEnd = Math.max(lastOutageEnd, addOutage(sender, outage));
+        }
+        Message message = new Message.Builder().addData("message", "replay").build();
+        LatencyHistogram delays = new LatencyHistogram();
+        long total = (long) rate * 60 * hours;
+        long intervalNanos = TimeUnit.MINUTES.toNanos(1) / rate;
+        long delivered = 0;
+        long undelivered = 0;
+        // last time a message failed or needed retries
+        long lastDisturbed = 0;
+        long started = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long scheduled = i * intervalNanos;
+            clock.advanceTo(scheduled);
+            List<String> devices = new ArrayList<String>(recipients);
+            for (int j = 0; j < recipients; j++) {
+                devices.add("device-" + i + "-" + j);
+            }
+            long requests = sender.getRequests();
+            int sent = 0;
+            try {
+                if (recipients == 1) {
+                    Result result = sender.send(message, devices.get(0), retries);
+                    sent = result.getMessageId() == null ? 0 : 1;
+                }
+                else {
+                    MulticastResult result = sender.send(message, devices, retries);
+                    sent = result.getSuccess();
+                }
+            }
+            catch (IOException e) {
+                // counted as undelivered
+            }
+            delivered += sent;
+            undelivered += recipients - sent;
+            if (sent < recipients || sender.getRequests() - requests > 1) {
+                lastDisturbed = clock.nanoTime();
+            }
+            delays.record(clock.nanoTime() - scheduled);
+        }
+        double realSeconds = (System.nanoTime() - started) / 1e9;
+        LatencyHistogram.Snapshot snapshot = delays.snapshot();
+
+        Map<String, Object> delayMillis = new LinkedHashMap<String, Object>();
+        delayMillis.put("mean", snapshot.getMean() / 1e6);
+        delayMillis.put("p50", snapshot.getPercentile(50) / 1e6);
+        delayMillis.put("p99", snapshot.getPercentile(99) / 1e6);
+        delayMillis.put("max", snapshot.getMax() / 1e6);
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("messages", total);
+        report.put("recipients", total * recipients);
+        report.put("delivered", delivered);
+        report.put("undelivered", undelivered);
+        report.put("requests", sender.getRequests());
+        report.put("failedRequests", sender.getFailedRequests());
+        report.put("requestsPerMessage", (double) sender.getRequests() / total);
+        report.put("recipientsPerRecipient",
+                (double) sender.getRecipients() / (total * recipients));
+        report.put("rejectedRetries", budget == null ? 0 : budget.getRejectedRetries());
+        report.put("sleptMillis", clock.getSleptMillis());
+        report.put("delayMillis", delayMillis);
+        // how long after the end of the outages messages kept failing or waiting for retries
+        report.put("convergenceMillis",
+                TimeUnit.NANOSECONDS.toMillis(Math.max(0, lastDisturbed - lastOutageEnd)));
+        report.put("virtualSeconds", clock.elapsed(TimeUnit.MILLISECONDS) / 1e3);
+        report.put("realSeconds", realSeconds);
+        return JSONValue.toJSONString(report);
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.loadtest;
+
+import java.util.Random;
+
+/**
+ * Distribution of the latencies added by the {@link GcmSimulator} to its responses.
+ */
+public abstract class LatencyDistribution {
+
+    /**
+     * Gets the next latency, in milliseconds.
+     */
+    public abstract long nextMillis(Random random);
+
+    /**
+     * Always the same latency.
+     */
+    public static LatencyDistribution fixed(final long millis) {
+        checkNotNegative(millis);
+        return new LatencyDistribution() {
+
+            @Override
+            public long nextMillis(Random random) {
+                return millis;
+            }
+
+            @Override
+            public String toString() {
+                return "fixed:" + millis;
+            }
+        };
+    }
+
+    /**
+     * Latencies spread evenly between two values.
+     */
+    public static LatencyDistribution uniform(final long minMillis, final long maxMillis) {
+        checkNotNegative(minMillis);
+        if (maxMillis < minMillis) {
+            throw new IllegalArgumentException("max must not be lower than min");
+        }
+        return new LatencyDistribution() {
+
+            @Override
+            public long nextMillis(Random random) {
+                return minMillis + (long) (random.nextDouble() * (maxMillis - minMillis + 1));
+            }
+
+            @Override
+            public String toString() {
+                return "uniform:" + minMillis + ":" + maxMillis;
+            }
+        };
+    }
+
+    /**
+     * Log-normal latencies, the usual shape of network latencies: most are close to the median,
+     * with a long tail whose length grows with sigma.
+     */
+    public static LatencyDistribution logNormal(final long medianMillis, final double sigma) {
+        checkNotNegative(medianMillis);
+        if (sigma < 0) {
+            throw new IllegalArgumentException("sigma cannot be negative");
+        }
+        return new LatencyDistribution() {
+
+            @Override
+            public long nextMillis(Random random) {
+                return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+            }
+
+            @Override
+            public String toString() {
+                return "lognormal:" + medianMillis + ":" + sigma;
+            }
+        };
+    }
+
+    /**
+     * Parses a distribution, as {@code fixed:<millis>}, {@code uniform:<min>:<max>} or
+     * {@code lognormal:<median>:<sigma>}.
+     */
+    public static LatencyDistribution parse(String spec) {
+        String[] parts = spec.split(":");
+        try {
+            if (parts[0].equals("fixed") && parts.length == 2) {
+                return fixed(Long.parseLong(parts[1]));
+            }
+            if (parts[0].equals("uniform") && parts.length == 3) {
+                return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            }
+            if (parts[0].equals("lognormal") && parts.length == 3) {
+                return logNormal(Long.parseLong(parts[1]), Double.parseDouble(parts[2]));
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid latency distribution: " + spec, e);
+        }
+        throw new IllegalArgumentException("Invalid latency distribution: " + spec);
+    }
+
+    private static void checkNotNegative(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("latency cannot be negative");
+        }
+    }
+
+}
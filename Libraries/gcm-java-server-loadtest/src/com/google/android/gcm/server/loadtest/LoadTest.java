@@ -0,0 +1,303 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.loadtest;
+
+import com.google.android.gcm.server.GcmError;
+import com.google.android.gcm.server.InMemorySenderMetrics;
+import com.google.android.gcm.server.LatencyHistogram;
+import com.google.android.gcm.server.Message;
+import com.google.android.gcm.server.Sender;
+import com.google.android.gcm.server.SenderConfig;
+import com.google.android.gcm.server.SenderThreads;
+
+import org.json.simple.JSONValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link Sender} at a target rate against a {@link GcmSimulator} and reports the
+ * throughput, the latency percentiles and the retry amplification as JSON.
+ *
+ * <p>
+ * The load is open-loop: messages are scheduled at a fixed rate whatever the response times, and
+ * their latency is measured from the time they were scheduled, so a slow sender shows up as
+ * growing latencies instead of a lower rate. Options (all optional):
+ *
+ * <pre>
+ * --rate &lt;messages per second&gt;      (default 100)
+ * --duration &lt;seconds&gt;                (default 10)
+ * --recipients &lt;devices per message&gt;  (default 1, more than one sends multicast messages)
+ * --threads &lt;sending threads&gt;         (default 64, 0 starts a thread per message, virtual on
+ *                                     Java 21 or newer)
+ * --retries &lt;retries per message&gt;     (default 5)
+ * --max-in-flight &lt;sends&gt;             (default 0, no limit on the sends in flight)
+ * --latency &lt;distribution&gt;            (default lognormal:20:0.5, see
+ *                                     {@link LatencyDistribution#parse(String)})
+ * --unavailable-rate &lt;0..1&gt;           (default 0, requests answered with a 503 status)
+ * --retry-after &lt;seconds&gt;             (Retry-After header of the 503 responses)
+ * --canonical-rate &lt;0..1&gt;             (default 0, results with a canonical id)
+ * --error-rate &lt;code&gt;=&lt;0..1&gt;          (results failing with the code, repeatable)
+ * --report &lt;file&gt;                     (writes the report to the file as well)
+ * </pre>
+ */
+public final class LoadTest {
+
+    private int                       rate              = 100;
+    private int                       durationSeconds   = 10;
+    private int                       recipients        = 1;
+    private int                       threads           = 64;
+    private int                       retries           = 5;
+    private int                       maxInFlight;
+    private LatencyDistribution       latency           = LatencyDistribution.logNormal(20, 0.5);
+    private double                    unavailableRate;
+    private int                       retryAfterSeconds = -1;
+    private double                    canonicalIdRate;
+    private final Map<String, Double> errorRates;
+    private String                    reportFile;
+
+    private LoadTest(String[] args) {
+        errorRates = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--rate":
+                    rate = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--recipients":
+                    recipients = Integer.parseInt(value);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    break;
+                case "--retries":
+                    retries = Integer.parseInt(value);
+                    break;
+                case "--max-in-flight":
+                    maxInFlight = Integer.parseInt(value);
+                    break;
+                case "--latency":
+                    latency = LatencyDistribution.parse(value);
+                    break;
+                case "--unavailable-rate":
+                    unavailableRate = Double.parseDouble(value);
+                    break;
+                case "--retry-after":
+                    retryAfterSeconds = Integer.parseInt(value);
+                    break;
+                case "--canonical-rate":
+                    canonicalIdRate = Double.parseDouble(value);
+                    break;
+                case "--error-rate":
+                    int separator = value.indexOf('=');
+                    if (separator < 0) {
+                        throw new IllegalArgumentException("Invalid error rate: " + value);
+                    }
+                    errorRates.put(value.substring(0, separator),
+                            Double.parseDouble(value.substring(separator + 1)));
+                    break;
+                case "--report":
+                    reportFile = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        if (rate <= 0 || durationSeconds <= 0 || recipients <= 0 || threads < 0 || retries < 0) {
+            throw new IllegalArgumentException("Invalid options");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test;
+        try {
+            test = new LoadTest(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("See the documentation of " + LoadTest.class.getName()
+                    + " for the options");
+            System.exit(2);
+            return;
+        }
+        String report = test.run();
+        System.out.println(report);
+        if (test.reportFile != null) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(new File(test.reportFile)),
+                    "UTF-8");
+            try {
+                writer.write(report);
+            }
+            finally {
+                writer.close();
+            }
+        }
+    }
+
+    private String run() throws IOException, InterruptedException {
+        GcmSimulator.Builder builder = new GcmSimulator.Builder().latency(latency)
+                .unavailableRate(unavailableRate).retryAfter(retryAfterSeconds)
+                .canonicalIdRate(canonicalIdRate);
+        for (Map.Entry<String, Double> entry : errorRates.entrySet()) {
+            builder.errorRate(entry.getKey(), entry.getValue());
+        }
+        GcmSimulator simulator = builder.start();
+        try {
+            return run(simulator);
+        }
+        finally {
+            simulator.close();
+        }
+    }
+
+    private String run(GcmSimulator simulator) throws InterruptedException {
+        final Sender sender = new Sender("loadtest", new SenderConfig.Builder()
+                .endpoint(simulator.getUrl()).maxInFlightRequests(maxInFlight).build());
+        InMemorySenderMetrics metrics = new InMemorySenderMetrics();
+        sender.setMetrics(metrics);
+        final Message message = new Message.Builder().collapseKey("loadtest")
+                .addData("message", "load test").build();
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        ExecutorService executor = threads == 0 ? SenderThreads.newThreadPerTaskExecutor(
+                "loadtest") : Executors.newFixedThreadPool(threads);
+
+        long total = (long) rate * durationSeconds;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            final long scheduled = start + i * intervalNanos;
+            long delay;
+            while ((delay = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            final List<String> devices = devices(i);
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        if (devices.size() == 1) {
+                            sender.send(message, devices.get(0), retries);
+                        }
+                        else {
+                            sender.send(message, devices, retries);
+                        }
+                        completed.incrementAndGet();
+                    }
+                    catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                    finally {
+                        latencies.record(System.nanoTime() - scheduled);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        return report(total, completed.get(), failed.get(), elapsedSeconds,
+                latencies.snapshot(), metrics.snapshot(), simulator);
+    }
+
+    private List<String> devices(long index) {
+        List<String> devices = new ArrayList<String>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            devices.add("device-" + index + "-" + i);
+        }
+        return devices;
+    }
+
+    private String report(long scheduled, long completed, long failed, double elapsedSeconds,
+            LatencyHistogram.Snapshot latencies, InMemorySenderMetrics.Snapshot metrics,
+            GcmSimulator simulator) {
+        Map<String, Object> config = new LinkedHashMap<String, Object>();
+        config.put("rate", rate);
+        config.put("durationSeconds", durationSeconds);
+        config.put("recipients", recipients);
+        config.put("threads", threads);
+        config.put("virtualThreads", threads == 0 && SenderThreads.isVirtualThreadSupported());
+        config.put("retries", retries);
+        config.put("maxInFlight", maxInFlight);
+        config.put("latency", latency.toString());
+        config.put("unavailableRate", unavailableRate);
+        config.put("retryAfterSeconds", retryAfterSeconds);
+        config.put("canonicalIdRate", canonicalIdRate);
+        config.put("errorRates", errorRates);
+
+        Map<String, Object> latencyMillis = new LinkedHashMap<String, Object>();
+        latencyMillis.put("mean", latencies.getMean() / 1e6);
+        latencyMillis.put("p50", latencies.getPercentile(50) / 1e6);
+        latencyMillis.put("p90", latencies.getPercentile(90) / 1e6);
+        latencyMillis.put("p99", latencies.getPercentile(99) / 1e6);
+        latencyMillis.put("p999", latencies.getPercentile(99.9) / 1e6);
+        latencyMillis.put("max", latencies.getMax() / 1e6);
+
+        // amplification of the load GCM sees, because of the retries of the sender
+        long requestedRecipients = scheduled * recipients;
+        Map<String, Object> amplification = new LinkedHashMap<String, Object>();
+        amplification.put("requestsPerMessage", (double) simulator.getRequests() / scheduled);
+        amplification.put("recipientsPerRecipient",
+                (double) simulator.getRecipients() / requestedRecipients);
+        amplification.put("retries", metrics.getRetries());
+        amplification.put("backoffMillis", metrics.getBackoffMillis());
+
+        Map<String, Object> errors = new LinkedHashMap<String, Object>();
+        for (Map.Entry<GcmError, Long> entry : metrics.getErrors().entrySet()) {
+            if (entry.getValue() > 0) {
+                errors.put(entry.getKey().name(), entry.getValue());
+            }
+        }
+
+        Map<String, Object> server = new LinkedHashMap<String, Object>();
+        server.put("requests", simulator.getRequests());
+        server.put("recipients", simulator.getRecipients());
+        server.put("unavailableResponses", simulator.getUnavailableResponses());
+
+        Map<String, Object> report = new LinkedHashMap<String, Object>();
+        report.put("config", config);
+        report.put("scheduled", scheduled);
+        report.put("completed", completed);
+        report.put("failed", failed);
+        report.put("elapsedSeconds", elapsedSeconds);
+        report.put("throughput", completed / elapsedSeconds);
+        report.put("latencyMillis", latencyMillis);
+        report.put("retryAmplification", amplification);
+        report.put("errors", errors);
+        report.put("simulator", server);
+        return JSONValue.toJSONString(report);
+    }
+
+}
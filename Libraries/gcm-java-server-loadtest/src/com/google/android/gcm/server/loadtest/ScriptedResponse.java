@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.loadtest;
+
+import java.util.Arrays;
+
+/**
+ * Response played by a {@link FaultInjectingSender}, built by the static factories and optionally
+ * slowed down by {@link #slowRead(long)}. Instances of this class are immutable.
+ */
+public final class ScriptedResponse {
+
+    private final int    status;
+    private final String errorCode;
+    // indexes of the failed devices on a multicast, or null for all of them
+    private final int[]  failedIndexes;
+    private final String ioExceptionMessage;
+    private final long   readMillis;
+
+    private ScriptedResponse(int status, String errorCode, int[] failedIndexes,
+            String ioExceptionMessage, long readMillis) {
+        this.status = status;
+        this.errorCode = errorCode;
+        this.failedIndexes = failedIndexes;
+        this.ioExceptionMessage = ioExceptionMessage;
+        this.readMillis = readMillis;
+    }
+
+    /**
+     * Every device of the request is sent the message.
+     */
+    public static ScriptedResponse ok() {
+        return new ScriptedResponse(200, null, null, null, 0);
+    }
+
+    /**
+     * Every device of the request fails with an error (see the {@code ERROR_} constants of
+     * {@link com.google.android.gcm.server.Constants}).
+     */
+    public static ScriptedResponse error(String errorCode) {
+        return new ScriptedResponse(200, checkErrorCode(errorCode), null, null, 0);
+    }
+
+    /**
+     * Some devices of a multicast fail with an error, the others are sent the message. A plain
+     * request has a single device, at index 0.
+     */
+    public static ScriptedResponse partial(String errorCode, int... failedIndexes) {
+        return new ScriptedResponse(200, checkErrorCode(errorCode), failedIndexes.clone(), null,
+                0);
+    }
+
+    /**
+     * The whole request fails with an HTTP status, such as 503 or 401.
+     */
+    public static ScriptedResponse status(int status) {
+        if (status == 200) {
+            throw new IllegalArgumentException("use ok() or error() for successful requests");
+        }
+        return new ScriptedResponse(status, null, null, null, 0);
+    }
+
+    /**
+     * The connection fails with an {@link java.io.IOException}.
+     */
+    public static ScriptedResponse ioException(String message) {
+        return new ScriptedResponse(0, null, null, message, 0);
+    }
+
+    /**
+     * Gets a copy of this response whose body takes the given time to read, on the clock of the
+     * sender.
+     */
+    public ScriptedResponse slowRead(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        return new ScriptedResponse(status, errorCode, failedIndexes, ioExceptionMessage, millis);
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    String getIoExceptionMessage() {
+        return ioExceptionMessage;
+    }
+
+    long getReadMillis() {
+        return readMillis;
+    }
+
+    /**
+     * Gets the error of the device at an index of the request, or {@literal null} if it is sent
+     * the message.
+     */
+    String errorAt(int index) {
+        if (errorCode == null) {
+            return null;
+        }
+        if (failedIndexes == null) {
+            return errorCode;
+        }
+        for (int failedIndex : failedIndexes) {
+            if (failedIndex == index) {
+                return errorCode;
+            }
+        }
+        return null;
+    }
+
+    private static String checkErrorCode(String errorCode) {
+        if (errorCode == null) {
+            throw new IllegalArgumentException("errorCode cannot be null");
+        }
+        return errorCode;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ScriptedResponse(");
+        if (ioExceptionMessage != null) {
+            builder.append("ioException=").append(ioExceptionMessage);
+        }
+        else {
+            builder.append("status=").append(status);
+            if (errorCode != null) {
+                builder.append(", error=").append(errorCode);
+            }
+            if (failedIndexes != null) {
+                builder.append(", failedIndexes=").append(Arrays.toString(failedIndexes));
+            }
+        }
+        if (readMillis > 0) {
+            builder.append(", readMillis=").append(readMillis);
+        }
+        return builder.append(")").toString();
+    }
+
+}
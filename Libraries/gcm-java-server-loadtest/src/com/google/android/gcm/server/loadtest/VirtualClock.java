@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server.loadtest;
+
+import com.google.android.gcm.server.Clock;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock whose time only moves when it is advanced or slept on, so retries and backoffs take no
+ * real time at all.
+ *
+ * <p>
+ * Sleeping advances the clock shared by all threads, which keeps replays deterministic as long as
+ * a single thread sends at a time.
+ */
+public final class VirtualClock extends Clock {
+
+    private final AtomicLong nanos       = new AtomicLong();
+    private final AtomicLong sleptMillis = new AtomicLong();
+
+    @Override
+    public long nanoTime() {
+        return nanos.get();
+    }
+
+    @Override
+    public void sleep(long millis) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        sleptMillis.addAndGet(millis);
+        advance(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves the time forward.
+     */
+    public void advance(long duration, TimeUnit unit) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration cannot be negative");
+        }
+        nanos.addAndGet(unit.toNanos(duration));
+    }
+
+    /**
+     * Moves the time forward to the given time, unless it is already past it.
+     */
+    public void advanceTo(long nanoTime) {
+        long current;
+        do {
+            current = nanos.get();
+        }
+        while (current < nanoTime && !nanos.compareAndSet(current, nanoTime));
+    }
+
+    /**
+     * Gets the time elapsed since the clock was created.
+     */
+    public long elapsed(TimeUnit unit) {
+        return unit.convert(nanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Gets the total time slept on this clock, in milliseconds.
+     */
+    public long getSleptMillis() {
+        return sleptMillis.get();
+    }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices a multicast message is sent to, after rewriting them to their canonical registration ids,
+ * removing the duplicates and skipping the ones known to be dead or throttled.
+ *
+ * <p>
+ * Each device of the input is either mapped to a target, the registration id actually sent, or
+ * resolved locally. The results for the targets are mapped back to every device of the input.
+ */
+final class Audience {
+
+    private final List<String> regIds;
+    private final List<String> targets;
+    // position on the targets of each device, or -1 - position on the local results if it was
+    // resolved locally
+    private final int[]        targetOf;
+    // first device of each target, and next device with the same target (-1 if none)
+    private final int[]        firstDevice;
+    private final int[]        nextDevice;
+    // canonical id each device was rewritten to, null if it was not
+    private final String[]     canonicalIds;
+    // results of the registration ids resolved locally, without sending them
+    private final List<Result> localResults;
+    // number of devices resolved locally
+    private final int          skipped;
+
+    private Audience(List<String> regIds, List<String> targets, int[] targetOf,
+            String[] canonicalIds, List<Result> localResults) {
+        this.regIds = regIds;
+        this.targets = targets;
+        this.targetOf = targetOf;
+        this.canonicalIds = canonicalIds;
+        this.localResults = localResults;
+        firstDevice = new int[targets.size()];
+        nextDevice = new int[targetOf.length];
+        Arrays.fill(firstDevice, -1);
+        int skipped = 0;
+        // chain the devices backwards, so they are notified in the input order
+        for (int i = targetOf.length - 1; i >= 0; i--) {
+            int target = targetOf[i];
+            if (target < 0) {
+                skipped++;
+            }
+            else {
+                nextDevice[i] = firstDevice[target];
+                firstDevice[target] = i;
+            }
+        }
+        this.skipped = skipped;
+    }
+
+    /**
+     * Rewrites the devices to their canonical registration ids, removes the duplicates and skips
+     * the dead and throttled ones.
+     *
+     * @param cache cache of canonical ids, or {@literal null} if devices should not be rewritten.
+     * @param filter filter of dead devices, or {@literal null} if they should not be skipped.
+     * @param limiter limiter of the messages sent to each device, or {@literal null} if devices
+     *            should not be throttled.
+     *
+     * @return the audience, or {@literal null} if no device was rewritten, duplicated nor skipped,
+     *         in which case the devices can be sent as they are.
+     */
+    static Audience prepare(List<String> regIds, CanonicalIdCache cache, DeadTokenFilter filter,
+            DeviceRateLimiter limiter) {
+        int total = regIds.size();
+        Map<String, Integer> positions = new HashMap<String, Integer>(total * 4 / 3 + 1);
+        List<String> targets = new ArrayList<String>(total);
+        List<Result> localResults = new ArrayList<Result>();
+        int[] targetOf = new int[total];
+        String[] canonicalIds = null;
+        for (int i = 0; i < total; i++) {
+            String regId = Sender.nonNull(regIds.get(i));
+            String canonicalId = cache == null ? null : cache.get(regId);
+            if (canonicalId != null) {
+                if (canonicalIds == null) {
+                    canonicalIds = new String[total];
+                }
+                canonicalIds[i] = canonicalId;
+                regId = canonicalId;
+            }
+            Integer position = positions.get(regId);
+            if (position == null) {
+                // each registration id is only checked once, even if duplicated
+                Result localResult = null;
+                if (filter != null && filter.mightContain(regId)) {
+                    localResult = localResult(Constants.ERROR_SKIPPED_NOT_REGISTERED);
+                }
+                else if (limiter != null && !limiter.tryAcquire(regId)) {
+                    localResult = localResult(Constants.ERROR_DEVICE_QUOTA_EXCEEDED);
+                }
+                if (localResult == null) {
+                    position = targets.size();
+                    targets.add(regId);
+                }
+                else {
+                    position = -1 - localResults.size();
+                    localResults.add(localResult);
+                }
+                positions.put(regId, position);
+            }
+            targetOf[i] = position;
+        }
+        if (canonicalIds == null && targets.size() == total) {
+            // nothing was rewritten, and if no target is duplicated none was skipped either
+            return null;
+        }
+        if (canonicalIds == null) {
+            canonicalIds = new String[total];
+        }
+        return new Audience(regIds, targets, targetOf, canonicalIds, localResults);
+    }
+
+    /**
+     * Gets the registration ids to be sent.
+     */
+    List<String> getTargets() {
+        return targets;
+    }
+
+    /**
+     * Gets the registration id sent for a device, which is its canonical id if it was rewritten.
+     */
+    String getSentId(int device) {
+        String canonicalId = canonicalIds[device];
+        return canonicalId == null ? regIds.get(device) : canonicalId;
+    }
+
+    /**
+     * Gets the number of devices that were resolved locally.
+     */
+    int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Gets the number of devices that were resolved locally with a given error.
+     */
+    int getSkipped(GcmError error) {
+        int count = 0;
+        for (int target : targetOf) {
+            if (target < 0 && localResults.get(-1 - target).getError() == error) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Creates the result of a registration id resolved locally, as if GCM returned the error.
+     */
+    static Result localResult(String errorCode) {
+        return new Result.Builder().errorCode(errorCode).build();
+    }
+
+    /**
+     * Notifies a listener of the results of the devices resolved locally.
+     */
+    void notifySkipped(ResultListener listener) {
+        if (listener != null && skipped > 0) {
+            for (int device = 0; device < targetOf.length; device++) {
+                int target = targetOf[device];
+                if (target < 0) {
+                    listener.onResult(device, regIds.get(device), localResults.get(-1 - target));
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the result of a device, given the result of its target.
+     */
+    private Result resultOf(int device, Result targetResult) {
+        String canonicalId = canonicalIds[device];
+        if (canonicalId == null || targetResult.getMessageId() == null
+                || targetResult.getCanonicalRegistrationId() != null) {
+            return targetResult;
+        }
+        // let the caller know the device was rewritten, as if GCM returned the canonical id
+        return new Result.Builder().messageId(targetResult.getMessageId())
+                .canonicalRegistrationId(canonicalId).build();
+    }
+
+    /**
+     * Wraps a listener of the targets' results into a listener of the devices' results.
+     */
+    ResultListener wrap(final ResultListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return new ResultListener() {
+
+            @Override
+            public void onResult(int index, String registrationId, Result result) {
+                for (int device = firstDevice[index]; device >= 0; device = nextDevice[device]) {
+                    listener.onResult(device, regIds.get(device), resultOf(device, result));
+                }
+            }
+        };
+    }
+
+    /**
+     * Maps the result of the targets back to the devices.
+     *
+     * @param targetsResult result of sending the targets, or {@literal null} if there were no
+     *            targets, in which case the multicast id is 0.
+     */
+    MulticastResult merge(MulticastResult targetsResult) {
+        List<Result> targetResults = targetsResult == null ? null : targetsResult.getResults();
+        List<Result> results = new ArrayList<Result>(targetOf.length);
+        int success = 0, failure = 0, canonicalIdsCount = 0;
+        for (int device = 0; device < targetOf.length; device++) {
+            int target = targetOf[device];
+            Result result = target < 0 ? localResults.get(-1 - target) : resultOf(device,
+                    targetResults.get(target));
+            if (result.getMessageId() != null) {
+                success++;
+                if (result.getCanonicalRegistrationId() != null) {
+                    canonicalIdsCount++;
+                }
+            }
+            else {
+                failure++;
+            }
+            results.add(result);
+        }
+        MulticastResult.Builder builder;
+        if (targetsResult == null) {
+            builder = new MulticastResult.Builder(success, failure, canonicalIdsCount, 0);
+        }
+        else {
+            builder = new MulticastResult.Builder(success, failure, canonicalIdsCount,
+                    targetsResult.getMulticastId()).retryMulticastIds(targetsResult
+                    .getRetryMulticastIds());
+        }
+        builder.compactResults();
+        for (Result result : results) {
+            builder.addResult(result);
+        }
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adapts the number of devices of the multicast requests made by the bulk sends of a
+ * {@link Sender} (see {@link Sender#setBatchSizer(BatchSizer)}) to the health of GCM.
+ *
+ * <p>
+ * The size is adjusted like a congestion window (additive increase, multiplicative decrease):
+ * it starts at the maximum, is halved when a request fails with a 5xx status or an
+ * {@link java.io.IOException}, shrinks by a quarter when a request is slower than the target
+ * latency, and grows again by a sixteenth of the range after each full request answered within
+ * the target. Under stress, smaller requests limit the devices retried when one fails; when GCM
+ * is healthy, full requests give the best throughput.
+ *
+ * <p>
+ * Decreases apply to the current size, and only count requests of between half the current size
+ * and the current size: larger requests were sized before the last decrease, which already
+ * accounted for them, so requests failing at the same time only shrink the size once, and much
+ * smaller requests (the tails of the bulk sends, or their retries) say little about it. Requests
+ * are also kept under a maximum body size, counting the payload and the registration ids.
+ * Instances of this class are thread-safe, and can be shared by several senders.
+ */
+public class BatchSizer {
+
+    private final int           minSize;
+    private final int           maxSize;
+    private final long          targetLatencyNanos;
+    private final int           maxRequestBytes;
+    private final int           step;
+    private final AtomicInteger size;
+
+    /**
+     * Creates a sizer without body size limit.
+     *
+     * @param minSize minimum number of devices of a request.
+     * @param maxSize maximum number of devices of a request, at most
+     *            {@link Constants#MAX_MULTICAST_SIZE}.
+     * @param targetLatency latency of a request above which its size is reduced.
+     * @param unit unit of the target latency.
+     */
+    public BatchSizer(int minSize, int maxSize, long targetLatency, TimeUnit unit) {
+        this(minSize, maxSize, targetLatency, unit, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a sizer.
+     *
+     * @param minSize minimum number of devices of a request.
+     * @param maxSize maximum number of devices of a request, at most
+     *            {@link Constants#MAX_MULTICAST_SIZE}.
+     * @param targetLatency latency of a request above which its size is reduced.
+     * @param unit unit of the target latency.
+     * @param maxRequestBytes maximum size of the body of a request, which is only exceeded by
+     *            requests of a single device.
+     */
+    public BatchSizer(int minSize, int maxSize, long targetLatency, TimeUnit unit,
+            int maxRequestBytes) {
+        if (minSize < 1 || maxSize < minSize || maxSize > Constants.MAX_MULTICAST_SIZE
+                || targetLatency < 1 || maxRequestBytes < 1) {
+            throw new IllegalArgumentException("Invalid batch sizer configuration");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetLatencyNanos = unit.toNanos(targetLatency);
+        this.maxRequestBytes = maxRequestBytes;
+        this.step = Math.max(1, (maxSize - minSize) / 16);
+        this.size = new AtomicInteger(maxSize);
+    }
+
+    /**
+     * Gets the current number of devices of a request.
+     */
+    public int getBatchSize() {
+        return size.get();
+    }
+
+    /**
+     * Gets the maximum size of the body of a request.
+     */
+    public int getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    /**
+     * Called by the sender when a multicast request got a response.
+     *
+     * @param recipients number of devices of the request.
+     * @param status HTTP status of the response.
+     * @param latencyNanos time posting the request and reading its response.
+     */
+    public void requestCompleted(int recipients, int status, long latencyNanos) {
+        if (status >= 500) {
+            shrink(recipients, true);
+        }
+        else if (status == 200) {
+            if (latencyNanos > targetLatencyNanos) {
+                shrink(recipients, false);
+            }
+            else if (recipients >= size.get()) {
+                // only full requests show that the current size is sustainable
+                grow();
+            }
+        }
+    }
+
+    /**
+     * Called by the sender when a multicast request failed without a response.
+     *
+     * @param recipients number of devices of the request.
+     */
+    public void requestFailed(int recipients) {
+        shrink(recipients, true);
+    }
+
+    /**
+     * Halves the current size, or shrinks it by a quarter, unless the request is out of the range
+     * counted for decreases.
+     */
+    private void shrink(int recipients, boolean halve) {
+        int current;
+        int target;
+        do {
+            current = size.get();
+            if (recipients > current || recipients < current / 2) {
+                return;
+            }
+            target = Math.max(minSize, halve ? current / 2 : current - current / 4);
+            if (target >= current) {
+                return;
+            }
+        }
+        while (!size.compareAndSet(current, target));
+    }
+
+    private void grow() {
+        int current;
+        do {
+            current = size.get();
+            if (current >= maxSize) {
+                return;
+            }
+        }
+        while (!size.compareAndSet(current, Math.min(maxSize, current + step)));
+    }
+
+    @Override
+    public String toString() {
+        return "BatchSizer(size=" + size.get() + ", min=" + minSize + ", max=" + maxSize + ")";
+    }
+
+}
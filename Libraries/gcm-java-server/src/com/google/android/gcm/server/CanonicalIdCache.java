@@ -0,0 +1,163 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded, in memory map from stale registration ids to their canonical registration id.
+ *
+ * <p>
+ * When set on a {@link Sender}, the devices are rewritten to their canonical registration id
+ * before sending, so GCM does not keep returning the same canonical id (and delivering the message
+ * twice if both ids are in the audience) until the application datastore is updated. The cache is
+ * fed with the canonical ids returned by GCM; when full, the least recently used ids are evicted.
+ *
+ * <p>
+ * The cache can be saved to and loaded from a file, so its content survives restarts. Instances
+ * of this class are thread-safe.
+ */
+public class CanonicalIdCache {
+
+    private static final Charset      UTF8     = Charset.forName(Sender.UTF8);
+
+    /**
+     * Maximum number of canonical ids followed when resolving a registration id, in case a
+     * canonical id is replaced again.
+     */
+    private static final int          MAX_HOPS = 4;
+
+    private final Map<String, String> canonicalIds;
+
+    /**
+     * Default constructor.
+     *
+     * @param maxSize maximum number of registration ids kept in the cache.
+     */
+    public CanonicalIdCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        canonicalIds = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Gets the canonical registration id of a device.
+     *
+     * @return the canonical registration id, or {@literal null} if it is not known.
+     */
+    public synchronized String get(String registrationId) {
+        String canonicalId = canonicalIds.get(registrationId);
+        for (int hop = 1; hop < MAX_HOPS && canonicalId != null; hop++) {
+            String next = canonicalIds.get(canonicalId);
+            if (next == null) {
+                break;
+            }
+            canonicalId = next;
+        }
+        return canonicalId;
+    }
+
+    /**
+     * Adds the canonical registration id of a device.
+     */
+    public synchronized void put(String registrationId, String canonicalId) {
+        if (!Sender.nonNull(registrationId).equals(Sender.nonNull(canonicalId))) {
+            canonicalIds.put(registrationId, canonicalId);
+            // the canonical id is not stale anymore, if it ever was
+            canonicalIds.remove(canonicalId);
+        }
+    }
+
+    /**
+     * Gets the number of registration ids in the cache.
+     */
+    public synchronized int size() {
+        return canonicalIds.size();
+    }
+
+    /**
+     * Adds the content of a file written by {@link #save(File)} to the cache.
+     */
+    public void load(File file) throws IOException {
+        Map<String, String> loaded = new LinkedHashMap<String, String>();
+        BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('\t');
+                if (separator > 0) {
+                    loaded.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        synchronized (this) {
+            for (Map.Entry<String, String> entry : loaded.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Saves the content of the cache to a file, as a tab-separated registration id and canonical id
+     * per line, from the least to the most recently used.
+     */
+    public void save(File file) throws IOException {
+        Map<String, String> snapshot;
+        synchronized (this) {
+            snapshot = new LinkedHashMap<String, String>(canonicalIds);
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile()
+                .getParentFile());
+        try {
+            BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), UTF8);
+            try {
+                for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write('\t');
+                    writer.write(entry.getValue());
+                    writer.newLine();
+                }
+            }
+            finally {
+                writer.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            temp.delete();
+        }
+    }
+
+}
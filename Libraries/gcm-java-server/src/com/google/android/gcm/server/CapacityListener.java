@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Listener of the in-flight capacity of a {@link Sender} (see
+ * {@link SenderConfig.Builder#maxInFlightRequests(int)}), used as a demand signal by asynchronous
+ * producers: instead of blocking a thread on a send, they only submit as many sends as there is
+ * capacity for, and wait for this listener to submit more.
+ *
+ * <p>
+ * The listener is called on the thread that completed a send, so it should be cheap; the
+ * capacity may already be taken by other threads when it is called.
+ */
+public interface CapacityListener {
+
+    /**
+     * Called when a send completed and released its capacity.
+     *
+     * @param availableRequests number of sends that can be started without waiting.
+     * @param availableRecipients number of devices that can be sent without waiting.
+     */
+    void capacityReleased(int availableRequests, int availableRecipients);
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Source of time used by the {@link Sender} to wait between retries and to time requests.
+ *
+ * <p>
+ * The default {@link #SYSTEM} clock uses {@link System#nanoTime()} and {@link Thread#sleep(long)};
+ * other clocks can make time virtual, so that retries and backoffs can be tested or replayed
+ * without actually waiting.
+ */
+public abstract class Clock {
+
+    /**
+     * Clock using the system time.
+     */
+    public static final Clock SYSTEM = new Clock() {
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+
+        @Override
+        public String toString() {
+            return "Clock.SYSTEM";
+        }
+    };
+
+    /**
+     * Gets the current time in nanoseconds, which is only meaningful compared to other values
+     * returned by the same clock (see {@link System#nanoTime()}).
+     */
+    public abstract long nanoTime();
+
+    /**
+     * Waits for the given number of milliseconds.
+     */
+    public abstract void sleep(long millis) throws InterruptedException;
+
+}
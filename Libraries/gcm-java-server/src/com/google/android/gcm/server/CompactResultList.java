@@ -0,0 +1,217 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of {@link Result}s stored in parallel arrays (columns) instead of one object per
+ * result.
+ *
+ * <p>
+ * Numeric message ids are stored as longs, well-known error codes as a single byte, while other
+ * message ids, unknown error codes and canonical registration ids (which are rare) are stored in
+ * sparse columns. The {@link Result}s are created on demand by {@link #get(int)}, so they should
+ * not be compared by identity.
+ */
+final class CompactResultList extends AbstractList<Result> implements RandomAccess, Serializable {
+
+    private static final long       serialVersionUID = 1L;
+
+    /**
+     * Errors that can be stored in a single byte, their ordinal plus one is the stored value.
+     */
+    private static final GcmError[] ERRORS           = GcmError.values();
+
+    /**
+     * Error code value used for results without error.
+     */
+    private static final byte       NO_ERROR         = 0;
+    /**
+     * Error code value used for {@link GcmError#UNKNOWN} errors, stored in a sparse column.
+     */
+    private static final byte       OTHER_ERROR      = -1;
+
+    private int                     size;
+    private long[]                  numericMessageIds;
+    private byte[]                  errorCodes;
+    // message ids that cannot be derived from the other columns: non-numeric ids of successful
+    // results (or missing ones) and any id of failed results
+    private final SparseColumn      otherMessageIds  = new SparseColumn();
+    private final SparseColumn      canonicalIds     = new SparseColumn();
+    private final SparseColumn      otherErrorCodes  = new SparseColumn();
+
+    CompactResultList(int capacity) {
+        numericMessageIds = new long[capacity];
+        errorCodes = new byte[capacity];
+    }
+
+    CompactResultList(Collection<Result> results) {
+        this(results.size());
+        for (Result result : results) {
+            add(result);
+        }
+    }
+
+    /**
+     * Adds a result at the end of the list, which is the only modification supported.
+     */
+    @Override
+    public boolean add(Result result) {
+        Sender.nonNull(result);
+        if (size == errorCodes.length) {
+            int capacity = Math.max(16, size + (size >> 1));
+            numericMessageIds = Arrays.copyOf(numericMessageIds, capacity);
+            errorCodes = Arrays.copyOf(errorCodes, capacity);
+        }
+        int index = size++;
+        GcmError error = result.getError();
+        String messageId = result.getMessageId();
+        if (error == null) {
+            errorCodes[index] = NO_ERROR;
+            if (isNumeric(messageId)) {
+                numericMessageIds[index] = Long.parseLong(messageId);
+            }
+            else {
+                otherMessageIds.put(index, messageId);
+            }
+        }
+        else {
+            // failed results usually do not have a message id
+            if (error == GcmError.UNKNOWN) {
+                errorCodes[index] = OTHER_ERROR;
+                otherErrorCodes.put(index, result.getErrorCodeName());
+            }
+            else {
+                errorCodes[index] = (byte) (error.ordinal() + 1);
+            }
+            if (messageId != null) {
+                otherMessageIds.put(index, messageId);
+            }
+        }
+        String canonicalId = result.getCanonicalRegistrationId();
+        if (canonicalId != null) {
+            canonicalIds.put(index, canonicalId);
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Releases the unused capacity, once all results were added.
+     */
+    void trimToSize() {
+        if (size < errorCodes.length) {
+            numericMessageIds = Arrays.copyOf(numericMessageIds, size);
+            errorCodes = Arrays.copyOf(errorCodes, size);
+        }
+    }
+
+    @Override
+    public Result get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        byte code = errorCodes[index];
+        String messageId;
+        int slot = otherMessageIds.indexOf(index);
+        if (slot >= 0) {
+            messageId = otherMessageIds.valueAt(slot);
+        }
+        else if (code == NO_ERROR) {
+            messageId = Long.toString(numericMessageIds[index]);
+        }
+        else {
+            messageId = null;
+        }
+        String errorCode;
+        if (code == NO_ERROR) {
+            errorCode = null;
+        }
+        else if (code == OTHER_ERROR) {
+            errorCode = otherErrorCodes.get(index);
+        }
+        else {
+            errorCode = ERRORS[code - 1].getCode();
+        }
+        return new Result.Builder().messageId(messageId)
+                .canonicalRegistrationId(canonicalIds.get(index)).errorCode(errorCode).build();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Checks whether a message id can be stored as a long and restored exactly by
+     * {@link Long#toString(long)}.
+     */
+    private static boolean isNumeric(String value) {
+        // 18 digits always fit in a long
+        if (value == null || value.isEmpty() || value.length() > 18) {
+            return false;
+        }
+        if (value.charAt(0) == '0') {
+            return value.length() == 1;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch < '0' || ch > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Column holding a value for a few indexes only, which are sorted as they are added in order.
+     */
+    private static final class SparseColumn implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private int[]             indexes          = new int[0];
+        private String[]          values           = new String[0];
+        private int               size;
+
+        void put(int index, String value) {
+            if (size == indexes.length) {
+                int capacity = Math.max(4, size * 2);
+                indexes = Arrays.copyOf(indexes, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            indexes[size] = index;
+            values[size] = value;
+            size++;
+        }
+
+        int indexOf(int index) {
+            return Arrays.binarySearch(indexes, 0, size, index);
+        }
+
+        String valueAt(int slot) {
+            return values[slot];
+        }
+
+        String get(int index) {
+            int slot = indexOf(index);
+            return slot >= 0 ? values[slot] : null;
+        }
+    }
+
+}
@@ -59,6 +59,16 @@ public final class Constants {
      */
     public static final String PARAM_TIME_TO_LIVE            = "time_to_live";
 
+    /**
+     * Maximum number of registration ids that can be sent on a single multicast request.
+     */
+    public static final int    MAX_MULTICAST_SIZE            = 1000;
+
+    /**
+     * Maximum size, in bytes, of the payload data of a message.
+     */
+    public static final int    MAX_PAYLOAD_SIZE              = 4096;
+
     /**
      * Too many messages sent by the sender. Retry after a while.
      */
@@ -120,6 +130,19 @@ public final class Constants {
      */
     public static final String ERROR_INVALID_TTL             = "InvalidTtl";
 
+    /**
+     * Not returned by GCM: the device was skipped because the {@link DeadTokenFilter} of the
+     * sender reported it as not registered. As the filter can report false positives, the
+     * registration id should not be deleted because of this error.
+     */
+    public static final String ERROR_SKIPPED_NOT_REGISTERED  = "SkippedNotRegistered";
+
+    /**
+     * Not returned by GCM: the request of the device failed without results, see
+     * {@link SendAllResult#getException(int)} for the cause.
+     */
+    public static final String ERROR_REQUEST_FAILED          = "RequestFailed";
+
     /**
      * Token returned by GCM when a message was successfully sent.
      */
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Negative cache of registration ids that GCM reported as invalid (see
+ * {@link GcmError#INVALID_TOKEN}), so messages are not sent to them again.
+ *
+ * <p>
+ * It is implemented as a blocked Bloom filter: each registration id is hashed to a block of 512
+ * bits (a cache line), where a few bits are set. The memory used is fixed when the filter is
+ * created, regardless of how many ids are added; in exchange, there is a small probability that an
+ * id is reported as dead when it was never added (a false positive), which grows as ids are added.
+ * With 10 bits per id (about 120MB for 100M ids) the probability is around 1%.
+ *
+ * <p>
+ * Instances of this class are thread-safe and lock-free.
+ */
+public class DeadTokenFilter {
+
+    private static final int      LONGS_PER_BLOCK    = 8;
+    private static final int      BITS_PER_BLOCK     = LONGS_PER_BLOCK * 64;
+    private static final int      DEFAULT_HASHES     = 7;
+    // each 64 bits hash gives 7 positions of 9 bits within a block
+    private static final int      POSITIONS_PER_HASH = 7;
+
+    private final AtomicLongArray bits;
+    private final int             blocks;
+    private final int             hashes;
+
+    /**
+     * Creates a filter using a fixed amount of memory.
+     *
+     * @param memoryBytes memory used by the filter, in bytes (rounded down to 64 bytes blocks).
+     */
+    public DeadTokenFilter(long memoryBytes) {
+        this(memoryBytes, DEFAULT_HASHES);
+    }
+
+    private DeadTokenFilter(long memoryBytes, int hashes) {
+        long blocks = memoryBytes / (LONGS_PER_BLOCK * 8);
+        if (blocks < 1 || blocks * LONGS_PER_BLOCK > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid memory size: " + memoryBytes);
+        }
+        this.blocks = (int) blocks;
+        this.hashes = hashes;
+        this.bits = new AtomicLongArray(this.blocks * LONGS_PER_BLOCK);
+    }
+
+    /**
+     * Creates a filter sized for a number of registration ids and a false positive probability.
+     *
+     * @param expectedIds number of registration ids expected to be added.
+     * @param falsePositiveProbability probability of reporting an id as dead when it is not, once
+     *            expectedIds ids were added (e.g. {@code 0.01}).
+     */
+    public static DeadTokenFilter forExpectedIds(long expectedIds, double falsePositiveProbability) {
+        if (expectedIds < 1 || falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+            throw new IllegalArgumentException("Invalid size: " + expectedIds + " ids with "
+                    + falsePositiveProbability + " false positive probability");
+        }
+        double ln2 = Math.log(2);
+        double bitsPerId = -Math.log(falsePositiveProbability) / (ln2 * ln2);
+        int hashes = (int) Math.max(1, Math.min(16, Math.round(bitsPerId * ln2)));
+        long memoryBytes = (long) Math.ceil(expectedIds * bitsPerId / 8);
+        // at least one block
+        return new DeadTokenFilter(Math.max(memoryBytes, LONGS_PER_BLOCK * 8), hashes);
+    }
+
+    /**
+     * Adds a registration id to the filter.
+     */
+    public void add(String registrationId) {
+        long hash = Hashing.hash(registrationId);
+        int offset = block(hash);
+        long bitHash = Hashing.mix(hash);
+        for (int i = 0; i < hashes; i++) {
+            int bit = bit(bitHash, i);
+            int index = offset + (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do {
+                current = bits.get(index);
+                if ((current & mask) != 0) {
+                    break;
+                }
+            }
+            while (!bits.compareAndSet(index, current, current | mask));
+            if (i % POSITIONS_PER_HASH == POSITIONS_PER_HASH - 1) {
+                bitHash = Hashing.mix(bitHash);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a registration id might have been added to the filter.
+     *
+     * @return {@literal false} if the id was never added, {@literal true} if it was added or, with
+     *         a small probability, if it was not (see the class documentation).
+     */
+    public boolean mightContain(String registrationId) {
+        long hash = Hashing.hash(registrationId);
+        int offset = block(hash);
+        long bitHash = Hashing.mix(hash);
+        for (int i = 0; i < hashes; i++) {
+            int bit = bit(bitHash, i);
+            if ((bits.get(offset + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+            if (i % POSITIONS_PER_HASH == POSITIONS_PER_HASH - 1) {
+                bitHash = Hashing.mix(bitHash);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the memory used by the filter bits, in bytes.
+     */
+    public long getMemorySize() {
+        return (long) bits.length() * 8;
+    }
+
+    /**
+     * Gets the i-th bit position within a block, from a hash that is mixed again every
+     * {@link #POSITIONS_PER_HASH} positions.
+     */
+    private static int bit(long bitHash, int i) {
+        return (int) (bitHash >>> (i % POSITIONS_PER_HASH * 9)) & (BITS_PER_BLOCK - 1);
+    }
+
+    /**
+     * Gets the offset on the bits of the block of a hash.
+     */
+    private int block(long hash) {
+        return Hashing.reduce(hash, blocks) * LONGS_PER_BLOCK;
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a send could not complete within the deadline of its {@link SenderConfig},
+ * instead of retrying any further.
+ */
+public final class DeadlineExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    private final long        deadlineMillis;
+    private final int         attempts;
+
+    public DeadlineExceededException(long deadlineMillis, int attempts) {
+        super("Deadline of " + deadlineMillis + " ms exceeded after " + attempts + " attempts");
+        this.deadlineMillis = deadlineMillis;
+        this.attempts = attempts;
+    }
+
+    /**
+     * Gets the deadline that was exceeded, in milliseconds.
+     */
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Gets the number of requests posted before giving up.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Limits the number of messages sent to each device over a sliding time window, to avoid
+ * {@link Constants#ERROR_DEVICE_QUOTA_EXCEEDED} errors.
+ *
+ * <p>
+ * The messages sent to each device are counted with count-min sketches, so the memory used is fixed
+ * when the limiter is created, regardless of the number of devices. Counts can only be
+ * overestimated, when many devices share the same counters; the error is kept low by the width and
+ * depth of the sketch.
+ *
+ * <p>
+ * The window slides by keeping the counts of the current and previous periods, weighting the
+ * previous one by how much of it still overlaps the window. Instances of this class are
+ * thread-safe.
+ */
+public class DeviceRateLimiter {
+
+    private static final int DEFAULT_WIDTH = 1 << 20;
+    private static final int DEFAULT_DEPTH = 4;
+
+    private final int        maxMessages;
+    private final long       windowNanos;
+    private final int        width;
+    private final int        depth;
+
+    private volatile Period  current;
+    private volatile Period  previous;
+
+    /**
+     * Creates a limiter with a default sketch of 4 rows of 1M counters (16MB per period).
+     *
+     * @param maxMessages maximum number of messages sent to a device within a window.
+     * @param window duration of the window.
+     * @param unit unit of the window duration.
+     */
+    public DeviceRateLimiter(int maxMessages, long window, TimeUnit unit) {
+        this(maxMessages, window, unit, DEFAULT_WIDTH, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Creates a limiter with a custom sketch, using {@code 2 * width * depth} counters.
+     *
+     * @param maxMessages maximum number of messages sent to a device within a window.
+     * @param window duration of the window.
+     * @param unit unit of the window duration.
+     * @param width number of counters on each row of the sketch.
+     * @param depth number of rows of the sketch.
+     */
+    public DeviceRateLimiter(int maxMessages, long window, TimeUnit unit, int width, int depth) {
+        if (maxMessages < 1 || window < 1 || width < 1 || depth < 1
+                || (long) width * depth > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid limiter configuration");
+        }
+        this.maxMessages = maxMessages;
+        this.windowNanos = unit.toNanos(window);
+        this.width = width;
+        this.depth = depth;
+        long now = System.nanoTime();
+        current = new Period(now, width * depth);
+        previous = new Period(now - windowNanos, width * depth);
+    }
+
+    /**
+     * Counts a message to a device, if it does not exceed the limit.
+     *
+     * @return {@literal true} if the message can be sent, {@literal false} if too many messages
+     *         were sent to the device within the window.
+     */
+    public boolean tryAcquire(String registrationId) {
+        long now = System.nanoTime();
+        Period period = rotate(now);
+        Period last = previous;
+        // weight of the previous period, which is only partially in the window
+        double overlap = 1 - (double) (now - period.start) / windowNanos;
+        long hash = Hashing.hash(registrationId);
+        int[] indexes = new int[depth];
+        int currentCount = Integer.MAX_VALUE;
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + Hashing.reduce(hash, width);
+            indexes[row] = index;
+            int count = period.counts.get(index);
+            currentCount = Math.min(currentCount, count);
+            estimate = Math.min(estimate, count + (int) (last.counts.get(index) * overlap));
+            hash = Hashing.mix(hash);
+        }
+        if (estimate >= maxMessages) {
+            return false;
+        }
+        // conservative update: only the counters holding the minimum are incremented, which
+        // reduces the overestimation of the other devices sharing them
+        for (int row = 0; row < depth; row++) {
+            int index = indexes[row];
+            int count = period.counts.get(index);
+            if (count <= currentCount) {
+                period.counts.incrementAndGet(index);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts a new period if the current one is over.
+     */
+    private Period rotate(long now) {
+        Period period = current;
+        if (now - period.start < windowNanos) {
+            return period;
+        }
+        synchronized (this) {
+            period = current;
+            if (now - period.start >= windowNanos) {
+                long elapsedPeriods = (now - period.start) / windowNanos;
+                // if more than a whole window elapsed, the current period is too old to count
+                previous = elapsedPeriods == 1 ? period : new Period(now - windowNanos, width
+                        * depth);
+                period = new Period(period.start + elapsedPeriods * windowNanos, width * depth);
+                current = period;
+            }
+            return period;
+        }
+    }
+
+    /**
+     * Counters of the messages sent within a period of the length of the window.
+     */
+    private static final class Period {
+
+        private final long               start;
+        private final AtomicIntegerArray counts;
+
+        Period(long start, int size) {
+            this.start = start;
+            this.counts = new AtomicIntegerArray(size);
+        }
+    }
+
+}
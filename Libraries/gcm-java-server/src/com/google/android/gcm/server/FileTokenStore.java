@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link TokenStore} keeping the registration ids in a text file, one per line.
+ *
+ * <p>
+ * Each batch of updates rewrites the whole file at once, through a temporary file that atomically
+ * replaces the original one, so the file is never left half written. Duplicated registration ids
+ * (e.g. two ids replaced by the same canonical id) are stored only once.
+ *
+ * <p>
+ * Accesses to the file are serialized with a lock rather than a monitor, so a virtual thread
+ * waiting for the file does not pin its carrier thread.
+ */
+public class FileTokenStore implements TokenStore {
+
+    private static final Charset UTF8 = Charset.forName(Sender.UTF8);
+
+    private final File           file;
+    private final ReentrantLock  lock = new ReentrantLock();
+
+    /**
+     * Default constructor.
+     *
+     * @param file file holding the registration ids; it is created on the first update if it does
+     *            not exist.
+     */
+    public FileTokenStore(File file) {
+        this.file = Sender.nonNull(file);
+    }
+
+    /**
+     * Gets all the registration ids in the store, in the same order as in the file.
+     */
+    public Set<String> getRegistrationIds() throws IOException {
+        lock.lock();
+        try {
+            Set<String> registrationIds = new LinkedHashSet<String>();
+            if (!file.exists()) {
+                return registrationIds;
+            }
+            BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8);
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        registrationIds.add(line);
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+            return registrationIds;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds new registration ids to the store.
+     */
+    public void addRegistrationIds(Collection<String> registrationIds) throws IOException {
+        lock.lock();
+        try {
+            Set<String> current = getRegistrationIds();
+            current.addAll(registrationIds);
+            write(current);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void replaceRegistrationIds(Map<String, String> canonicalIds) throws IOException {
+        lock.lock();
+        try {
+            Set<String> current = getRegistrationIds();
+            Set<String> updated = new LinkedHashSet<String>(current.size());
+            for (String registrationId : current) {
+                String canonicalId = canonicalIds.get(registrationId);
+                updated.add(canonicalId != null ? canonicalId : registrationId);
+            }
+            write(updated);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeRegistrationIds(Collection<String> registrationIds) throws IOException {
+        lock.lock();
+        try {
+            Set<String> current = getRegistrationIds();
+            current.removeAll(new HashSet<String>(registrationIds));
+            write(current);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(Set<String> registrationIds) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), UTF8);
+            try {
+                for (String registrationId : registrationIds) {
+                    writer.write(registrationId);
+                    writer.newLine();
+                }
+            }
+            finally {
+                writer.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            temp.delete();
+        }
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Typed version of the error codes returned by GCM (see the {@code ERROR_} constants of
+ * {@link Constants}).
+ *
+ * <p>
+ * Each error carries a set of flags describing how it should be handled, which can be checked
+ * either with the convenience methods or with a bitmask over {@link #getFlags()}:
+ *
+ * <pre>
+ * <code>
+ * if ((result.getError().getFlags() &amp; (GcmError.RETRYABLE | GcmError.QUOTA)) != 0) {
+ *     // send it again later
+ * }
+ * </code>
+ * </pre>
+ */
+public enum GcmError {
+
+    QUOTA_EXCEEDED(Constants.ERROR_QUOTA_EXCEEDED, GcmError.QUOTA),
+    DEVICE_QUOTA_EXCEEDED(Constants.ERROR_DEVICE_QUOTA_EXCEEDED, GcmError.QUOTA),
+    MISSING_REGISTRATION(Constants.ERROR_MISSING_REGISTRATION, 0),
+    INVALID_REGISTRATION(Constants.ERROR_INVALID_REGISTRATION, GcmError.INVALID_TOKEN),
+    // not flagged as an invalid token, as it is also caused by using the wrong API key
+    MISMATCH_SENDER_ID(Constants.ERROR_MISMATCH_SENDER_ID, 0),
+    NOT_REGISTERED(Constants.ERROR_NOT_REGISTERED, GcmError.INVALID_TOKEN),
+    MESSAGE_TOO_BIG(Constants.ERROR_MESSAGE_TOO_BIG, 0),
+    MISSING_COLLAPSE_KEY(Constants.ERROR_MISSING_COLLAPSE_KEY, 0),
+    UNAVAILABLE(Constants.ERROR_UNAVAILABLE, GcmError.RETRYABLE),
+    INTERNAL_SERVER_ERROR(Constants.ERROR_INTERNAL_SERVER_ERROR, GcmError.RETRYABLE),
+    INVALID_TTL(Constants.ERROR_INVALID_TTL, 0),
+    // built locally from a filter that can be wrong, so the token must not be removed
+    SKIPPED_NOT_REGISTERED(Constants.ERROR_SKIPPED_NOT_REGISTERED, 0),
+    // built locally, the exception of the request telling whether to retry
+    REQUEST_FAILED(Constants.ERROR_REQUEST_FAILED, 0),
+    /**
+     * Any error code not known by this library, see {@link Result#getErrorCodeName()} for the
+     * actual code.
+     */
+    UNKNOWN(null, 0);
+
+    /**
+     * Flag of errors caused by a temporary failure of GCM, which the {@link Sender} retries.
+     */
+    public static final int RETRYABLE     = 1;
+
+    /**
+     * Flag of errors meaning the registration id will never be valid again and should be removed.
+     */
+    public static final int INVALID_TOKEN = 1 << 1;
+
+    /**
+     * Flag of errors caused by sending too many messages, which can be sent again after a while.
+     */
+    public static final int QUOTA         = 1 << 2;
+
+    private final String    code;
+    private final int       flags;
+
+    private GcmError(String code, int flags) {
+        this.code = code;
+        this.flags = flags;
+    }
+
+    /**
+     * Gets the error for a code returned by GCM.
+     *
+     * @return the matching error, {@link #UNKNOWN} if the code is not known, or {@literal null} if
+     *         the code is {@literal null}.
+     */
+    public static GcmError fromCode(String code) {
+        if (code == null) {
+            return null;
+        }
+        switch (code) {
+            case Constants.ERROR_QUOTA_EXCEEDED:
+                return QUOTA_EXCEEDED;
+            case Constants.ERROR_DEVICE_QUOTA_EXCEEDED:
+                return DEVICE_QUOTA_EXCEEDED;
+            case Constants.ERROR_MISSING_REGISTRATION:
+                return MISSING_REGISTRATION;
+            case Constants.ERROR_INVALID_REGISTRATION:
+                return INVALID_REGISTRATION;
+            case Constants.ERROR_MISMATCH_SENDER_ID:
+                return MISMATCH_SENDER_ID;
+            case Constants.ERROR_NOT_REGISTERED:
+                return NOT_REGISTERED;
+            case Constants.ERROR_MESSAGE_TOO_BIG:
+                return MESSAGE_TOO_BIG;
+            case Constants.ERROR_MISSING_COLLAPSE_KEY:
+                return MISSING_COLLAPSE_KEY;
+            case Constants.ERROR_UNAVAILABLE:
+                return UNAVAILABLE;
+            case Constants.ERROR_INTERNAL_SERVER_ERROR:
+                return INTERNAL_SERVER_ERROR;
+            case Constants.ERROR_INVALID_TTL:
+                return INVALID_TTL;
+            case Constants.ERROR_SKIPPED_NOT_REGISTERED:
+                return SKIPPED_NOT_REGISTERED;
+            case Constants.ERROR_REQUEST_FAILED:
+                return REQUEST_FAILED;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * Gets the code used by GCM for this error, or {@literal null} for {@link #UNKNOWN}.
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Gets the flags of this error, as a bitmask of {@link #RETRYABLE}, {@link #INVALID_TOKEN}
+     * and {@link #QUOTA}.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Checks whether the error was caused by a temporary failure of GCM.
+     */
+    public boolean isRetryable() {
+        return (flags & RETRYABLE) != 0;
+    }
+
+    /**
+     * Checks whether the registration id should be removed.
+     */
+    public boolean isInvalidToken() {
+        return (flags & INVALID_TOKEN) != 0;
+    }
+
+    /**
+     * Checks whether the error was caused by sending too many messages.
+     */
+    public boolean isQuota() {
+        return (flags & QUOTA) != 0;
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Hash functions for registration ids, used by the probabilistic structures of this package.
+ */
+final class Hashing {
+
+    private Hashing() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the characters of a string, finalized to spread all the bits.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, also used to derive new hashes from a previous one.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Maps the upper bits of a hash to {@code [0, size)}, with a multiply-shift instead of a
+     * modulo.
+     */
+    static int reduce(long hash, int size) {
+        return (int) (((hash >>> 32) * size) >>> 32);
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of sends in flight on a {@link Sender}, and the number of devices they target.
+ *
+ * <p>
+ * Capacity is handed out in the order it was asked for, by fair semaphores. A send larger than the
+ * maximum of devices takes the whole capacity, so it can still be made alone.
+ */
+final class InFlightLimiter {
+
+    private final int                    maxRequests;
+    private final int                    maxRecipients;
+    private final Semaphore              requests;
+    private final Semaphore              recipients;
+    private final List<CapacityListener> listeners = new CopyOnWriteArrayList<CapacityListener>();
+
+    /**
+     * Creates a limiter, 0 meaning no limit.
+     */
+    InFlightLimiter(int maxRequests, int maxRecipients) {
+        this.maxRequests = maxRequests == 0 ? Integer.MAX_VALUE : maxRequests;
+        this.maxRecipients = maxRecipients == 0 ? Integer.MAX_VALUE : maxRecipients;
+        this.requests = new Semaphore(this.maxRequests, true);
+        this.recipients = new Semaphore(this.maxRecipients, true);
+    }
+
+    /**
+     * Acquires the capacity of a send.
+     *
+     * @param count number of devices of the send.
+     * @param timeoutNanos maximum time to wait, or a negative value to wait as long as needed.
+     *
+     * @return whether the capacity was acquired before the timeout.
+     *
+     * @throws InterruptedIOException if the thread was interrupted while waiting.
+     */
+    boolean acquire(int count, long timeoutNanos) throws InterruptedIOException {
+        int permits = permits(count);
+        try {
+            if (timeoutNanos < 0) {
+                requests.acquire();
+                try {
+                    recipients.acquire(permits);
+                }
+                catch (InterruptedException e) {
+                    requests.release();
+                    throw e;
+                }
+                return true;
+            }
+            long deadline = System.nanoTime() + timeoutNanos;
+            if (!requests.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            boolean acquired = false;
+            try {
+                acquired = recipients.tryAcquire(permits, deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+            }
+            finally {
+                if (!acquired) {
+                    requests.release();
+                }
+            }
+            return acquired;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for capacity");
+        }
+    }
+
+    /**
+     * Releases the capacity of a send, and notifies the capacity listeners.
+     */
+    void release(int count) {
+        recipients.release(permits(count));
+        requests.release();
+        if (!listeners.isEmpty()) {
+            int availableRequests = requests.availablePermits();
+            int availableRecipients = recipients.availablePermits();
+            for (CapacityListener listener : listeners) {
+                listener.capacityReleased(availableRequests, availableRecipients);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of device permits taken by a send.
+     */
+    int permits(int count) {
+        return Math.min(count, maxRecipients);
+    }
+
+    int getAvailableRequests() {
+        return requests.availablePermits();
+    }
+
+    int getAvailableRecipients() {
+        return recipients.availablePermits();
+    }
+
+    int getQueueLength() {
+        return requests.getQueueLength() + recipients.getQueueLength();
+    }
+
+    void addListener(CapacityListener listener) {
+        listeners.add(Sender.nonNull(listener));
+    }
+
+    void removeListener(CapacityListener listener) {
+        listeners.remove(listener);
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * {@link SenderMetrics} kept in memory, whose values can be read through {@link #snapshot()}.
+ *
+ * <p>
+ * Counters are striped and latencies are recorded on {@link LatencyHistogram}s, so updates do not
+ * lock nor allocate. Values are never reset: rates are computed by the difference between two
+ * snapshots.
+ *
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public class InMemorySenderMetrics implements SenderMetrics {
+
+    private static final GcmError[]  ERRORS         = GcmError.values();
+    private static final Stage[]     STAGES         = Stage.values();
+
+    private final StripedCounter     requests       = new StripedCounter();
+    private final StripedCounter     recipients     = new StripedCounter();
+    private final StripedCounter     bytesOut       = new StripedCounter();
+    private final StripedCounter     bytesIn        = new StripedCounter();
+    private final StripedCounter     responses      = new StripedCounter();
+    private final StripedCounter     serverErrors   = new StripedCounter();
+    private final StripedCounter     failedRequests = new StripedCounter();
+    private final StripedCounter     retries        = new StripedCounter();
+    private final StripedCounter     backoffMillis  = new StripedCounter();
+    private final StripedCounter[]   errors         = new StripedCounter[ERRORS.length];
+    private final LatencyHistogram[] latencies      = new LatencyHistogram[STAGES.length];
+
+    public InMemorySenderMetrics() {
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new StripedCounter();
+        }
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public void requestSent(int recipients, long bytes) {
+        requests.increment();
+        this.recipients.add(recipients);
+        bytesOut.add(bytes);
+    }
+
+    @Override
+    public void responseReceived(int status, long bytes) {
+        responses.increment();
+        if (status / 100 == 5) {
+            serverErrors.increment();
+        }
+        bytesIn.add(bytes);
+    }
+
+    @Override
+    public void requestFailed() {
+        failedRequests.increment();
+    }
+
+    @Override
+    public void errorReceived(GcmError error) {
+        errors[error.ordinal()].increment();
+    }
+
+    @Override
+    public void retryScheduled(long backoffMillis) {
+        retries.increment();
+        this.backoffMillis.add(backoffMillis);
+    }
+
+    @Override
+    public void stageCompleted(Stage stage, long nanos) {
+        latencies[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Takes a snapshot of the current values.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Immutable view of an {@link InMemorySenderMetrics} at some point in time.
+     *
+     * <p>
+     * Each value is read independently, so values updated while the snapshot is taken might not
+     * be consistent with each other.
+     */
+    public static final class Snapshot {
+
+        private final long                                  requests;
+        private final long                                  recipients;
+        private final long                                  bytesOut;
+        private final long                                  bytesIn;
+        private final long                                  responses;
+        private final long                                  serverErrors;
+        private final long                                  failedRequests;
+        private final long                                  retries;
+        private final long                                  backoffMillis;
+        private final Map<GcmError, Long>                   errors;
+        private final Map<Stage, LatencyHistogram.Snapshot> latencies;
+
+        private Snapshot(InMemorySenderMetrics metrics) {
+            requests = metrics.requests.sum();
+            recipients = metrics.recipients.sum();
+            bytesOut = metrics.bytesOut.sum();
+            bytesIn = metrics.bytesIn.sum();
+            responses = metrics.responses.sum();
+            serverErrors = metrics.serverErrors.sum();
+            failedRequests = metrics.failedRequests.sum();
+            retries = metrics.retries.sum();
+            backoffMillis = metrics.backoffMillis.sum();
+            Map<GcmError, Long> errorCounts = new EnumMap<GcmError, Long>(GcmError.class);
+            for (GcmError error : ERRORS) {
+                long count = metrics.errors[error.ordinal()].sum();
+                if (count > 0) {
+                    errorCounts.put(error, count);
+                }
+            }
+            errors = Collections.unmodifiableMap(errorCounts);
+            Map<Stage, LatencyHistogram.Snapshot> stageLatencies =
+                    new EnumMap<Stage, LatencyHistogram.Snapshot>(Stage.class);
+            for (Stage stage : STAGES) {
+                stageLatencies.put(stage, metrics.latencies[stage.ordinal()].snapshot());
+            }
+            latencies = Collections.unmodifiableMap(stageLatencies);
+        }
+
+        /**
+         * Gets the number of requests posted to GCM, including retries.
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Gets the number of devices of all the requests posted to GCM.
+         */
+        public long getRecipients() {
+            return recipients;
+        }
+
+        /**
+         * Gets the size of the request bodies, in bytes.
+         */
+        public long getBytesOut() {
+            return bytesOut;
+        }
+
+        /**
+         * Gets the size of the response bodies, in bytes.
+         */
+        public long getBytesIn() {
+            return bytesIn;
+        }
+
+        /**
+         * Gets the number of responses received, whatever their status.
+         */
+        public long getResponses() {
+            return responses;
+        }
+
+        /**
+         * Gets the number of responses with a 5xx status.
+         */
+        public long getServerErrors() {
+            return serverErrors;
+        }
+
+        /**
+         * Gets the number of requests that failed without a response.
+         */
+        public long getFailedRequests() {
+            return failedRequests;
+        }
+
+        /**
+         * Gets the number of retries.
+         */
+        public long getRetries() {
+            return retries;
+        }
+
+        /**
+         * Gets the total time waited before retrying, in milliseconds.
+         */
+        public long getBackoffMillis() {
+            return backoffMillis;
+        }
+
+        /**
+         * Gets the number of times GCM returned an error.
+         */
+        public long getErrors(GcmError error) {
+            Long count = errors.get(Sender.nonNull(error));
+            return count == null ? 0 : count;
+        }
+
+        /**
+         * Gets the number of times GCM returned each error, only for errors returned at least
+         * once.
+         */
+        public Map<GcmError, Long> getErrors() {
+            return errors;
+        }
+
+        /**
+         * Gets the latencies of a stage.
+         */
+        public LatencyHistogram.Snapshot getLatency(Stage stage) {
+            return latencies.get(Sender.nonNull(stage));
+        }
+
+        @Override
+        public String toString() {
+            return "InMemorySenderMetrics.Snapshot(requests=" + requests + ", recipients="
+                    + recipients + ", bytesOut=" + bytesOut + ", bytesIn=" + bytesIn
+                    + ", responses=" + responses + ", serverErrors=" + serverErrors
+                    + ", failedRequests=" + failedRequests + ", retries=" + retries
+                    + ", backoffMillis=" + backoffMillis + ", errors=" + errors + ", latencies="
+                    + latencies + ")";
+        }
+    }
+
+}
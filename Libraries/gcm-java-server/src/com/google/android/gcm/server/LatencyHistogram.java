@@ -0,0 +1,165 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies, in nanoseconds, with a bounded relative error.
+ *
+ * <p>
+ * Like an HDR histogram, values are counted on buckets whose width grows with the value: each
+ * power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, so percentiles are accurate
+ * within about 3% of the value, from nanoseconds to hours, in a fixed array of counters. Recording
+ * a value is lock-free and does not allocate.
+ *
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public final class LatencyHistogram {
+
+    private static final int      SUB_BUCKET_BITS = 5;
+    private static final int      SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    // values below SUB_BUCKETS have a bucket each, then SUB_BUCKETS buckets per power of two
+    private static final int      BUCKETS         = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts          = new AtomicLongArray(BUCKETS);
+    private final StripedCounter  sum             = new StripedCounter();
+    private final AtomicLong      max             = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the values recorded so far.
+     *
+     * <p>
+     * Values recorded while the snapshot is taken may or may not be included.
+     */
+    public Snapshot snapshot() {
+        long[] snapshotCounts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshotCounts[i] = counts.get(i);
+            count += snapshotCounts[i];
+        }
+        return new Snapshot(snapshotCounts, count, sum.sum(), max.get());
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Gets the highest value counted on a bucket.
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Immutable view of a {@link LatencyHistogram} at some point in time.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long   count;
+        private final long   sum;
+        private final long   max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Gets the number of values recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the mean of the values recorded, or 0 if there are none.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Gets the highest value recorded, or 0 if there are none.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * Gets the value below which a percentage of the values recorded fall.
+         *
+         * @param percentile percentage, between 0 and 100.
+         *
+         * @return the highest value of the bucket holding the percentile, or 0 if there are no
+         *         values.
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100: "
+                        + percentile);
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "LatencyHistogram.Snapshot(count=" + count + ", mean=" + (long) getMean()
+                    + ", p50=" + getPercentile(50) + ", p99=" + getPercentile(99) + ", max=" + max
+                    + ")";
+        }
+    }
+
+}
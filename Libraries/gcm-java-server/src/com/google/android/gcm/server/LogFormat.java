@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.List;
+
+/**
+ * Renders the values logged by this package with a bounded size, hiding the registration ids.
+ *
+ * <p>
+ * Rendering allocates, so callers should only use it once they checked the message will be logged,
+ * with {@link java.util.logging.Logger#isLoggable(java.util.logging.Level)}.
+ */
+final class LogFormat {
+
+    /**
+     * Number of characters rendered before truncating a value.
+     */
+    static final int         MAX_LENGTH       = 1024;
+
+    /**
+     * Minimum length of the runs of token characters that are redacted: registration ids and API
+     * keys are longer, while message ids and most payload values are shorter.
+     */
+    private static final int MIN_TOKEN_LENGTH = 32;
+    private static final int VISIBLE_PREFIX   = 4;
+    private static final int MAX_IDS          = 3;
+
+    private LogFormat() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Renders a request or response body, or any text that might contain registration ids.
+     *
+     * <p>
+     * Long runs of characters used by registration ids are replaced by their first characters and
+     * their length, and the text is truncated after {@link #MAX_LENGTH} characters.
+     */
+    static String body(String text) {
+        if (text == null) {
+            return "null";
+        }
+        int length = text.length();
+        StringBuilder out = new StringBuilder(Math.min(length, MAX_LENGTH) + 32);
+        int i = 0;
+        while (i < length && out.length() < MAX_LENGTH) {
+            int end = i;
+            while (end < length && isTokenChar(text.charAt(end))) {
+                end++;
+            }
+            if (end - i >= MIN_TOKEN_LENGTH) {
+                appendRedacted(out, text, i, end);
+                i = end;
+            }
+            else if (end > i) {
+                out.append(text, i, end);
+                i = end;
+            }
+            else {
+                out.append(text.charAt(i++));
+            }
+        }
+        if (i < length) {
+            out.append("... (").append(length - i).append(" more chars)");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Renders a registration id.
+     */
+    static String id(String registrationId) {
+        if (registrationId == null || registrationId.length() <= VISIBLE_PREFIX) {
+            return String.valueOf(registrationId);
+        }
+        StringBuilder out = new StringBuilder(16);
+        appendRedacted(out, registrationId, 0, registrationId.length());
+        return out.toString();
+    }
+
+    /**
+     * Renders a list of registration ids, as their number and the first few ids.
+     */
+    static String ids(List<String> registrationIds) {
+        int size = registrationIds.size();
+        StringBuilder out = new StringBuilder(64).append(size).append(" devices [");
+        for (int i = 0; i < Math.min(size, MAX_IDS); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(id(registrationIds.get(i)));
+        }
+        if (size > MAX_IDS) {
+            out.append(", ...");
+        }
+        return out.append(']').toString();
+    }
+
+    private static void appendRedacted(StringBuilder out, String text, int start, int end) {
+        out.append(text, start, start + VISIBLE_PREFIX).append("...[").append(end - start)
+                .append(']');
+    }
+
+    /**
+     * Checks whether a character can be part of a registration id or an API key.
+     */
+    private static boolean isTokenChar(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+                || ch == '-' || ch == '_' || ch == ':';
+    }
+
+}
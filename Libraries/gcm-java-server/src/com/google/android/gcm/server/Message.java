@@ -74,6 +74,9 @@ public final class Message implements Serializable {
     private final Map<String, String> data;
     private final Boolean             dryRun;
     private final String              restrictedPackageName;
+    private final int                 payloadSize;
+    // cached hash code, as messages are used as keys when grouping recipients
+    private transient int             hash;
 
     public static final class Builder {
 
@@ -147,10 +150,12 @@ public final class Message implements Serializable {
     private Message(Builder builder) {
         collapseKey = builder.collapseKey;
         delayWhileIdle = builder.delayWhileIdle;
-        data = Collections.unmodifiableMap(builder.data);
+        // copy the data, so further changes on the builder do not affect this message
+        data = Collections.unmodifiableMap(new LinkedHashMap<String, String>(builder.data));
         timeToLive = builder.timeToLive;
         dryRun = builder.dryRun;
         restrictedPackageName = builder.restrictedPackageName;
+        payloadSize = computePayloadSize(data);
     }
 
     /**
@@ -195,6 +200,128 @@ public final class Message implements Serializable {
         return data;
     }
 
+    /**
+     * Gets the size of the payload data once encoded as JSON, in bytes.
+     *
+     * <p>
+     * GCM rejects messages whose payload is bigger than {@link Constants#MAX_PAYLOAD_SIZE} with a
+     * {@link Constants#ERROR_MESSAGE_TOO_BIG} error; this size can be used to detect it before
+     * sending the message.
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Checks whether the payload data fits in {@link Constants#MAX_PAYLOAD_SIZE}.
+     */
+    public boolean isPayloadSizeValid() {
+        return payloadSize <= Constants.MAX_PAYLOAD_SIZE;
+    }
+
+    /**
+     * Computes the size of the UTF-8 JSON object holding the payload data, without actually
+     * encoding it.
+     */
+    private static int computePayloadSize(Map<String, String> data) {
+        if (data.isEmpty()) {
+            return 0;
+        }
+        // opening and closing braces, plus a comma between entries
+        int size = 1 + data.size();
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            // colon between key and value
+            size += jsonSize(entry.getKey()) + 1 + jsonSize(entry.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Computes the size of a quoted and escaped JSON string encoded as UTF-8, following the
+     * escaping rules of the JSON library used by the {@link Sender}.
+     */
+    private static int jsonSize(String value) {
+        if (value == null) {
+            return 4;
+        }
+        int size = 2;
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '"':
+                case '\\':
+                case '/':
+                case '\b':
+                case '\f':
+                case '\n':
+                case '\r':
+                case '\t':
+                    size += 2;
+                    break;
+                default:
+                    if (ch <= '\u001F' || (ch >= '\u007F' && ch <= '\u009F')
+                            || (ch >= '\u2000' && ch <= '\u20FF')) {
+                        // escaped as backslash-u plus 4 hex digits
+                        size += 6;
+                    }
+                    else if (ch < 0x80) {
+                        size += 1;
+                    }
+                    else if (ch < 0x800 || Character.isSurrogate(ch)) {
+                        // a surrogate pair takes 4 bytes, 2 for each half
+                        size += 2;
+                    }
+                    else {
+                        size += 3;
+                    }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Two messages are equal if they have the same attributes and payload data, i.e. if they would
+     * be rendered to the same request for a given set of devices.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Message)) {
+            return false;
+        }
+        Message other = (Message) obj;
+        return equal(collapseKey, other.collapseKey)
+                && equal(delayWhileIdle, other.delayWhileIdle)
+                && equal(timeToLive, other.timeToLive) && equal(dryRun, other.dryRun)
+                && equal(restrictedPackageName, other.restrictedPackageName)
+                && data.equals(other.data);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = hash;
+        if (result == 0) {
+            result = hashCode(collapseKey);
+            result = 31 * result + hashCode(delayWhileIdle);
+            result = 31 * result + hashCode(timeToLive);
+            result = 31 * result + hashCode(dryRun);
+            result = 31 * result + hashCode(restrictedPackageName);
+            result = 31 * result + data.hashCode();
+            hash = result;
+        }
+        return result;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static int hashCode(Object value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("Message(");
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message to be sent to a list of devices by {@link Sender#sendAll(java.util.Collection, int)},
+ * such as the message of a segment of a campaign. Instances of this class are immutable.
+ */
+public final class MessageBatch {
+
+    private final Message        message;
+    private final List<String>   registrationIds;
+    private final ResultListener listener;
+
+    /**
+     * Creates a batch without listener.
+     *
+     * @param message message to be sent.
+     * @param registrationIds registration ids of the devices, of any size: they are sent in
+     *            chunks of at most {@link Constants#MAX_MULTICAST_SIZE} devices.
+     */
+    public MessageBatch(Message message, List<String> registrationIds) {
+        this(message, registrationIds, null);
+    }
+
+    /**
+     * Creates a batch notifying the final result of each device.
+     *
+     * @param message message to be sent.
+     * @param registrationIds registration ids of the devices, of any size: they are sent in
+     *            chunks of at most {@link Constants#MAX_MULTICAST_SIZE} devices.
+     * @param listener listener notified of the final result of each device, with its position on
+     *            the batch, or {@literal null}. It must be thread-safe if the sender has an
+     *            executor.
+     */
+    public MessageBatch(Message message, List<String> registrationIds, ResultListener listener) {
+        this.message = Sender.nonNull(message);
+        if (Sender.nonNull(registrationIds).isEmpty()) {
+            throw new IllegalArgumentException("registrationIds cannot be empty");
+        }
+        this.registrationIds = Collections.unmodifiableList(new ArrayList<String>(
+                registrationIds));
+        this.listener = listener;
+    }
+
+    /**
+     * Gets the message to be sent.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets the registration ids of the devices, in the order used for the results.
+     */
+    public List<String> getRegistrationIds() {
+        return registrationIds;
+    }
+
+    /**
+     * Gets the listener notified of the final result of each device, if any.
+     */
+    public ResultListener getListener() {
+        return listener;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageBatch(devices=" + registrationIds.size() + ", message=" + message + ")";
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Exception thrown when a message is not sent because its payload exceeds
+ * {@link Constants#MAX_PAYLOAD_SIZE}.
+ * <p>
+ * This is the local equivalent of the {@link Constants#ERROR_MESSAGE_TOO_BIG} error, detected before
+ * any request is made to GCM.
+ */
+public final class MessageTooBigException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+    private final int         payloadSize;
+    private final int         maxPayloadSize;
+
+    public MessageTooBigException(int payloadSize, int maxPayloadSize) {
+        super("Message payload has " + payloadSize + " bytes (maximum allowed is " + maxPayloadSize
+                + ")");
+        this.payloadSize = payloadSize;
+        this.maxPayloadSize = maxPayloadSize;
+    }
+
+    /**
+     * Gets the size of the rejected payload, in bytes.
+     */
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Gets the maximum size allowed for a payload, in bytes.
+     */
+    public int getMaxPayloadSize() {
+        return maxPayloadSize;
+    }
+
+}
@@ -33,7 +33,7 @@ public final class MulticastResult implements Serializable {
 
     public static final class Builder {
 
-        private final List<Result> results = new ArrayList<Result>();
+        private List<Result>       results = new ArrayList<Result>();
 
         // required parameters
         private final int          success;
@@ -56,6 +56,20 @@ public final class MulticastResult implements Serializable {
             return this;
         }
 
+        /**
+         * Stores the results in a compact, columnar layout instead of one object per result.
+         *
+         * <p>
+         * It considerably reduces the memory used by big multicasts, at the cost of creating the
+         * {@link Result} objects each time they are read from {@link MulticastResult#getResults()}.
+         */
+        public Builder compactResults() {
+            if (!(results instanceof CompactResultList)) {
+                results = new CompactResultList(results);
+            }
+            return this;
+        }
+
         public Builder retryMulticastIds(List<Long> retryMulticastIds) {
             this.retryMulticastIds = retryMulticastIds;
             return this;
@@ -71,6 +85,9 @@ public final class MulticastResult implements Serializable {
         failure = builder.failure;
         canonicalIds = builder.canonicalIds;
         multicastId = builder.multicastId;
+        if (builder.results instanceof CompactResultList) {
+            ((CompactResultList) builder.results).trimToSize();
+        }
         results = Collections.unmodifiableList(builder.results);
         List<Long> tmpList = builder.retryMulticastIds;
         if (tmpList == null) {
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends messages asynchronously, delivering the messages to each device in the same order they
+ * were submitted.
+ *
+ * <p>
+ * Messages are partitioned by registration id into serial queues, each drained by at most one task
+ * of the executor at a time, so messages to different devices are sent in parallel while messages
+ * to the same device are sent one after the other (including their retries). A device waiting for
+ * a retry only delays its own messages. Queues are lock-free, and are discarded once drained.
+ *
+ * <p>
+ * Instances of this class are thread-safe.
+ */
+public class OrderedSender {
+
+    /**
+     * Maximum number of messages sent by a queue before giving its thread back to the executor, so
+     * a busy device does not starve the others.
+     */
+    private static final int                         BATCH_SIZE = 16;
+
+    private final Sender                             sender;
+    private final Executor                           executor;
+    private final int                                retries;
+    private final ConcurrentMap<String, DeviceQueue> queues;
+
+    /**
+     * Default constructor.
+     *
+     * @param sender sender used to send the messages.
+     * @param executor executor running the queues, whose size bounds the number of devices being
+     *            sent to at the same time.
+     * @param retries number of retries of each message in case of service unavailability errors.
+     */
+    public OrderedSender(Sender sender, Executor executor, int retries) {
+        this.sender = Sender.nonNull(sender);
+        this.executor = Sender.nonNull(executor);
+        this.retries = retries;
+        this.queues = new ConcurrentHashMap<String, DeviceQueue>();
+    }
+
+    /**
+     * Sends a message to a device after the messages previously submitted to the same device.
+     *
+     * @return the future result of {@link Sender#send(Message, String, int)}, failing with the
+     *         {@link RejectedExecutionException} of the executor if it refuses to run the queue.
+     */
+    public Future<Result> send(final Message message, final String registrationId) {
+        Sender.nonNull(message);
+        final SendListener sendListener = sender.getInstrumentation();
+        final Clock clock = sender.getClock();
+        final long enqueued = sendListener == null ? 0 : clock.nanoTime();
+        SendTask task = new SendTask(new Callable<Result>() {
+
+            @Override
+            public Result call() throws Exception {
+                if (sendListener != null) {
+                    sendListener.messageDequeued(registrationId, clock.nanoTime() - enqueued);
+                }
+                return sender.send(message, registrationId, retries);
+            }
+        });
+        while (true) {
+            DeviceQueue queue = queues.get(Sender.nonNull(registrationId));
+            if (queue == null) {
+                DeviceQueue newQueue = new DeviceQueue(registrationId);
+                queue = queues.putIfAbsent(registrationId, newQueue);
+                if (queue == null) {
+                    queue = newQueue;
+                }
+            }
+            if (queue.offer(task, sendListener)) {
+                return task;
+            }
+            // the queue was drained and discarded in the meantime, try on a new one
+            queues.remove(registrationId, queue);
+        }
+    }
+
+    /**
+     * Gets the number of devices with messages being sent or waiting to be sent.
+     */
+    public int getActiveDevices() {
+        return queues.size();
+    }
+
+    /**
+     * Serial queue of the messages of a device.
+     */
+    private final class DeviceQueue implements Runnable {
+
+        private final String                          registrationId;
+        private final ConcurrentLinkedQueue<SendTask> tasks;
+        // number of tasks offered and not yet run, or -1 once the queue is discarded
+        private final AtomicInteger                   pending;
+
+        DeviceQueue(String registrationId) {
+            this.registrationId = registrationId;
+            this.tasks = new ConcurrentLinkedQueue<SendTask>();
+            this.pending = new AtomicInteger();
+        }
+
+        /**
+         * Adds a task to the queue, starting to drain it if it was empty.
+         *
+         * @param sendListener listener notified of the task being queued, or {@literal null}.
+         *
+         * @return {@literal false} if the queue was discarded.
+         */
+        boolean offer(SendTask task, SendListener sendListener) {
+            int count;
+            do {
+                count = pending.get();
+                if (count < 0) {
+                    return false;
+                }
+            }
+            while (!pending.compareAndSet(count, count + 1));
+            tasks.add(task);
+            if (sendListener != null) {
+                sendListener.messageEnqueued(registrationId, count + 1);
+            }
+            if (count == 0) {
+                execute();
+            }
+            return true;
+        }
+
+        /**
+         * Starts a drainer, discarding the queue and failing its tasks if the executor refuses it.
+         */
+        private void execute() {
+            try {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                // no drainer owns the queue, so nobody else polls it
+                int count = pending.getAndSet(-1);
+                queues.remove(registrationId, this);
+                for (int i = 0; i < count; i++) {
+                    SendTask task = tasks.poll();
+                    while (task == null) {
+                        Thread.yield();
+                        task = tasks.poll();
+                    }
+                    task.fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                SendTask task = tasks.poll();
+                while (task == null) {
+                    // the task was counted but is still being added by offer()
+                    Thread.yield();
+                    task = tasks.poll();
+                }
+                task.run();
+                if (pending.decrementAndGet() == 0) {
+                    // if offer() counted a new task in the meantime, it saw the queue empty and
+                    // started a new drainer, which now owns the queue
+                    if (pending.compareAndSet(0, -1)) {
+                        queues.remove(registrationId, this);
+                    }
+                    return;
+                }
+            }
+            // there are more tasks, but let other devices run first
+            execute();
+        }
+    }
+
+    /**
+     * Task sending a message, which can be failed without running it.
+     */
+    private static final class SendTask extends FutureTask<Result> {
+
+        SendTask(Callable<Result> callable) {
+            super(callable);
+        }
+
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+
+}
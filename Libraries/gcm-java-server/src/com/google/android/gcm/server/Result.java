@@ -46,6 +46,7 @@ public final class Result implements Serializable {
     private final String      messageId;
     private final String      canonicalRegistrationId;
     private final String      errorCode;
+    private final GcmError    error;
 
     public static final class Builder {
 
@@ -78,6 +79,7 @@ public final class Result implements Serializable {
         canonicalRegistrationId = builder.canonicalRegistrationId;
         messageId = builder.messageId;
         errorCode = builder.errorCode;
+        error = GcmError.fromCode(errorCode);
     }
 
     /**
@@ -101,6 +103,17 @@ public final class Result implements Serializable {
         return errorCode;
     }
 
+    /**
+     * Gets the typed error, if any.
+     *
+     * <p>
+     * Unlike {@link #getErrorCodeName()}, it can be checked without string comparisons; error codes
+     * not known by this library are mapped to {@link GcmError#UNKNOWN}.
+     */
+    public GcmError getError() {
+        return error;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("[");
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Callback notified of the final result of each device while a message is being sent to many
+ * devices, so the results can be processed before all the retries are done.
+ *
+ * <p>
+ * It is called on the thread sending the message, hence it should return quickly.
+ */
+public interface ResultListener {
+
+    /**
+     * Called once the final result for a device is known, i.e. when it will not be retried
+     * anymore.
+     *
+     * @param index position of the device on the list of devices being sent to.
+     * @param registrationId registration id of the device.
+     * @param result final result for the device.
+     */
+    void onResult(int index, String registrationId, Result result);
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Limits the retries to a ratio of the first attempts made over a sliding time window, so that a
+ * degraded GCM is not flooded by the retries of every send at once.
+ *
+ * <p>
+ * A budget is meant to be shared by all the {@link Sender}s of the process, which use the
+ * {@linkplain #shared() shared budget} unless given another one (see
+ * {@link Sender#setRetryBudget(RetryBudget)}): each send deposits its first attempt, and each
+ * retry withdraws from the budget. When GCM is healthy few sends need a retry, which are all
+ * allowed; when it is not, the retries add at most {@code ratio} times the normal load, and the
+ * sends that cannot retry fail fast with a {@link RetryBudgetExhaustedException}. A minimum of
+ * retries per window is always allowed, so that a low traffic can still retry.
+ *
+ * <p>
+ * The window slides by buckets of a tenth of its duration. Instances of this class are
+ * thread-safe; under heavy contention the budget can be slightly exceeded, as checking and
+ * withdrawing a retry are not atomic.
+ */
+public class RetryBudget {
+
+    private static final int                   BUCKETS = 10;
+    private static final RetryBudget           SHARED  =
+            new RetryBudget(0.1, 10, 10, TimeUnit.SECONDS);
+
+    private final double                       ratio;
+    private final int                          minRetries;
+    private final long                         bucketNanos;
+    private final Clock                        clock;
+    private final long                         origin;
+    private final AtomicReferenceArray<Bucket> buckets;
+    private final AtomicLong                   rejected;
+
+    /**
+     * Creates a budget on the system clock.
+     *
+     * @param ratio maximum number of retries per first attempt, such as 0.1 for 10%.
+     * @param minRetries number of retries allowed within a window regardless of the ratio.
+     * @param window duration of the window.
+     * @param unit unit of the window duration.
+     */
+    public RetryBudget(double ratio, int minRetries, long window, TimeUnit unit) {
+        this(ratio, minRetries, window, unit, Clock.SYSTEM);
+    }
+
+    /**
+     * Creates a budget on a custom clock, which should be the clock of the senders using it.
+     *
+     * @param ratio maximum number of retries per first attempt, such as 0.1 for 10%.
+     * @param minRetries number of retries allowed within a window regardless of the ratio.
+     * @param window duration of the window.
+     * @param unit unit of the window duration.
+     * @param clock clock measuring the window.
+     */
+    public RetryBudget(double ratio, int minRetries, long window, TimeUnit unit, Clock clock) {
+        if (ratio < 0 || minRetries < 0 || unit.toNanos(window) < BUCKETS) {
+            throw new IllegalArgumentException("Invalid retry budget configuration");
+        }
+        this.ratio = ratio;
+        this.minRetries = minRetries;
+        this.bucketNanos = unit.toNanos(window) / BUCKETS;
+        this.clock = Sender.nonNull(clock);
+        this.origin = clock.nanoTime();
+        this.buckets = new AtomicReferenceArray<Bucket>(BUCKETS);
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, new Bucket(i - BUCKETS));
+        }
+        this.rejected = new AtomicLong();
+    }
+
+    /**
+     * Gets the budget used by default by all the senders of the process, which allows retries of
+     * 10% of the first attempts made over 10 seconds, plus 10 retries per window.
+     */
+    public static RetryBudget shared() {
+        return SHARED;
+    }
+
+    /**
+     * Deposits the first attempt of a send.
+     */
+    public void recordAttempt() {
+        bucket(epoch()).attempts.incrementAndGet();
+    }
+
+    /**
+     * Withdraws a retry, if the budget allows it.
+     *
+     * @return {@literal true} if the retry can be made, {@literal false} if the budget is
+     *         exhausted.
+     */
+    public boolean tryAcquireRetry() {
+        long epoch = epoch();
+        Bucket current = bucket(epoch);
+        long attempts = 0;
+        long retries = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            Bucket bucket = buckets.get(i);
+            if (bucket.epoch > epoch - BUCKETS) {
+                attempts += bucket.attempts.get();
+                retries += bucket.retries.get();
+            }
+        }
+        if (retries >= minRetries + ratio * attempts) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        current.retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets the number of retries refused since the budget was created.
+     */
+    public long getRejectedRetries() {
+        return rejected.get();
+    }
+
+    private long epoch() {
+        return (clock.nanoTime() - origin) / bucketNanos;
+    }
+
+    /**
+     * Gets the bucket of an epoch, replacing the bucket of an older epoch at the same index.
+     */
+    private Bucket bucket(long epoch) {
+        int index = (int) (epoch % BUCKETS);
+        Bucket bucket = buckets.get(index);
+        if (bucket.epoch >= epoch) {
+            return bucket;
+        }
+        synchronized (this) {
+            bucket = buckets.get(index);
+            if (bucket.epoch < epoch) {
+                bucket = new Bucket(epoch);
+                buckets.set(index, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    /**
+     * Counters of the attempts and retries made within a tenth of the window.
+     */
+    private static final class Bucket {
+
+        private final long       epoch;
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong retries  = new AtomicLong();
+
+        Bucket(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+}
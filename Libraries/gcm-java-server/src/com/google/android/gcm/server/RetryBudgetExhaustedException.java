@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a send needed a retry but its {@link RetryBudget} was exhausted, which
+ * usually means GCM is degraded and should not be sent more load.
+ */
+public final class RetryBudgetExhaustedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+    private final int         attempts;
+
+    public RetryBudgetExhaustedException(int attempts) {
+        super("Retry budget exhausted after " + attempts + " attempts");
+        this.attempts = attempts;
+    }
+
+    /**
+     * Gets the number of requests posted before giving up.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link SendListener} ignoring all the events, to be extended by listeners interested in some of
+ * them only.
+ */
+public abstract class SendAdapter implements SendListener {
+
+    @Override
+    public void messageEnqueued(String registrationId, int queued) {
+    }
+
+    @Override
+    public void messageDequeued(String registrationId, long waitNanos) {
+    }
+
+    @Override
+    public void capacityAcquired(int recipients, long waitNanos) {
+    }
+
+    @Override
+    public void devicesSkipped(int notRegistered, int rateLimited) {
+    }
+
+    @Override
+    public void requestSerialized(int recipients, long bytes, long nanos) {
+    }
+
+    @Override
+    public void postStarted(String url, int recipients, long bytes) {
+    }
+
+    @Override
+    public void requestFailed(IOException e, long nanos) {
+    }
+
+    @Override
+    public void responseReceived(int status, long bytes, long nanos) {
+    }
+
+    @Override
+    public void responseParsed(List<Result> results, long nanos) {
+    }
+
+    @Override
+    public void retryScheduled(int attempt, int recipients, long backoffMillis) {
+    }
+
+    @Override
+    public void sendCompleted(Result result, long nanos) {
+    }
+
+    @Override
+    public void multicastCompleted(MulticastResult result, long nanos) {
+    }
+
+    @Override
+    public void sendFailed(IOException e, long nanos) {
+    }
+
+}
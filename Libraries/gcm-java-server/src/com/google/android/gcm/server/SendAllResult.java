@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of {@link Sender#sendAll(java.util.Collection, int)}: the {@link MulticastResult} of each
+ * batch, and the exception of its requests that failed if any, in the same order as the batches.
+ * The devices of the requests that failed get a {@link Constants#ERROR_REQUEST_FAILED} result,
+ * while the other devices of the batch keep theirs.
+ */
+public final class SendAllResult {
+
+    private final List<MessageBatch>    batches;
+    private final List<MulticastResult> results;
+    private final List<Exception>       exceptions;
+
+    SendAllResult(List<MessageBatch> batches, MulticastResult[] results, Exception[] exceptions) {
+        this.batches = Collections.unmodifiableList(batches);
+        this.results = Collections.unmodifiableList(Arrays.asList(results));
+        this.exceptions = Collections.unmodifiableList(Arrays.asList(exceptions));
+    }
+
+    /**
+     * Gets the batches that were sent.
+     */
+    public List<MessageBatch> getBatches() {
+        return batches;
+    }
+
+    /**
+     * Gets the result of each batch.
+     */
+    public List<MulticastResult> getResults() {
+        return results;
+    }
+
+    /**
+     * Gets the result of a batch.
+     *
+     * @return the combined result of all the multicasts of the batch, with a
+     *         {@link Constants#ERROR_REQUEST_FAILED} result for the devices of the multicasts that
+     *         failed (see {@link #getException(int)}).
+     */
+    public MulticastResult getResult(int index) {
+        return results.get(index);
+    }
+
+    /**
+     * Gets the exception that failed the requests of a batch, such as an
+     * {@link java.io.IOException} once the retries are exhausted, or {@literal null} if all of
+     * them were sent. When several multicasts of the batch failed, the other exceptions are
+     * suppressed by the first one.
+     */
+    public Exception getException(int index) {
+        return exceptions.get(index);
+    }
+
+    /**
+     * Gets the number of batches with requests that failed.
+     */
+    public int getFailedBatches() {
+        int failed = 0;
+        for (Exception exception : exceptions) {
+            if (exception != null) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Gets the number of devices the messages were successfully sent to, over all the batches.
+     */
+    public int getSuccess() {
+        int success = 0;
+        for (MulticastResult result : results) {
+            success += result.getSuccess();
+        }
+        return success;
+    }
+
+    @Override
+    public String toString() {
+        return "SendAllResult(batches=" + batches.size() + ", failedBatches=" + getFailedBatches()
+                + ", success=" + getSuccess() + ")";
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Listener of the lifecycle of the messages sent by a {@link Sender}, for tracing or custom
+ * instrumentation.
+ *
+ * <p>
+ * All the events of a send are called on the thread calling the send method (or on the thread
+ * running it, for an {@link OrderedSender}, except {@link #messageEnqueued}), so they can be
+ * correlated through thread-local state.
+ * A send posts one request per attempt, and each request goes through {@link #requestSerialized},
+ * {@link #postStarted}, then either {@link #requestFailed} or {@link #responseReceived}, and
+ * {@link #responseParsed} if the response could be parsed. Times are measured with the
+ * {@link Clock} of the sender.
+ *
+ * <p>
+ * Methods are called on the sending threads, so implementations must be thread-safe and should
+ * be cheap. Extend {@link SendAdapter} to only handle some of the events.
+ */
+public interface SendListener {
+
+    /**
+     * Called when a message is queued to be sent later, by an {@link OrderedSender}.
+     *
+     * @param registrationId device the message will be sent to.
+     * @param queued number of messages queued for the device, including this one.
+     */
+    void messageEnqueued(String registrationId, int queued);
+
+    /**
+     * Called when a queued message is about to be sent.
+     *
+     * @param registrationId device the message will be sent to.
+     * @param waitNanos time the message waited on the queue.
+     */
+    void messageDequeued(String registrationId, long waitNanos);
+
+    /**
+     * Called when a send got its in-flight capacity, see
+     * {@link SenderConfig.Builder#maxInFlightRequests(int)}; not called without limits.
+     *
+     * @param recipients number of devices the send took from the capacity.
+     * @param waitNanos time the send waited for capacity.
+     */
+    void capacityAcquired(int recipients, long waitNanos);
+
+    /**
+     * Called when devices are not sent, because they are known to be not registered (see
+     * {@link DeadTokenFilter}) or they exceeded their rate limit (see {@link DeviceRateLimiter}).
+     *
+     * @param notRegistered number of devices known to be not registered.
+     * @param rateLimited number of devices that exceeded their rate limit.
+     */
+    void devicesSkipped(int notRegistered, int rateLimited);
+
+    /**
+     * Called once the body of a request is built.
+     *
+     * @param recipients number of devices of the request.
+     * @param bytes size of the request body.
+     * @param nanos time spent building the body.
+     */
+    void requestSerialized(int recipients, long bytes, long nanos);
+
+    /**
+     * Called right before posting a request.
+     *
+     * @param url endpoint the request is posted to.
+     * @param recipients number of devices of the request.
+     * @param bytes size of the request body.
+     */
+    void postStarted(String url, int recipients, long bytes);
+
+    /**
+     * Called when a request failed without a response.
+     *
+     * @param e the cause of the failure.
+     * @param nanos time since the request was posted.
+     */
+    void requestFailed(IOException e, long nanos);
+
+    /**
+     * Called once the response of a request is read.
+     *
+     * @param status HTTP status of the response.
+     * @param bytes size of the response body, or 0 if it was not read.
+     * @param nanos time since the request was posted.
+     */
+    void responseReceived(int status, long bytes, long nanos);
+
+    /**
+     * Called once the body of a successful response is parsed.
+     *
+     * @param results results of the request, one per device.
+     * @param nanos time spent parsing the body.
+     */
+    void responseParsed(List<Result> results, long nanos);
+
+    /**
+     * Called when a request is going to be retried.
+     *
+     * @param attempt number of the attempt that will be retried, starting at 1.
+     * @param recipients number of devices that will be retried.
+     * @param backoffMillis time waited before retrying.
+     */
+    void retryScheduled(int attempt, int recipients, long backoffMillis);
+
+    /**
+     * Called once a message sent to one device has its final result.
+     *
+     * @param nanos time spent sending the message, including retries.
+     */
+    void sendCompleted(Result result, long nanos);
+
+    /**
+     * Called once a message sent to many devices has its final results.
+     *
+     * @param nanos time spent sending the message, including retries.
+     */
+    void multicastCompleted(MulticastResult result, long nanos);
+
+    /**
+     * Called when a message could not be sent at all.
+     *
+     * @param e the exception thrown to the caller.
+     * @param nanos time spent trying to send the message, including retries.
+     */
+    void sendFailed(IOException e, long nanos);
+
+}
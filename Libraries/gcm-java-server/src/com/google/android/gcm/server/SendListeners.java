@@ -0,0 +1,196 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import com.google.android.gcm.server.SenderMetrics.Stage;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link SendListener}s used internally by the {@link Sender}, so its send path only notifies a
+ * single listener.
+ */
+final class SendListeners {
+
+    private SendListeners() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Combines the metrics and the listener set on a sender.
+     *
+     * @return a listener notifying both, or {@literal null} if there are none.
+     */
+    static SendListener of(SenderMetrics metrics, SendListener listener) {
+        if (metrics == null) {
+            return listener;
+        }
+        SendListener metricsListener = new MetricsListener(metrics);
+        return listener == null ? metricsListener : new Pair(metricsListener, listener);
+    }
+
+    /**
+     * Translates the send events into {@link SenderMetrics} updates.
+     */
+    private static final class MetricsListener extends SendAdapter {
+
+        private final SenderMetrics metrics;
+
+        MetricsListener(SenderMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void messageDequeued(String registrationId, long waitNanos) {
+            metrics.stageCompleted(Stage.QUEUE, waitNanos);
+        }
+
+        @Override
+        public void capacityAcquired(int recipients, long waitNanos) {
+            metrics.stageCompleted(Stage.QUEUE, waitNanos);
+        }
+
+        @Override
+        public void requestSerialized(int recipients, long bytes, long nanos) {
+            metrics.stageCompleted(Stage.SERIALIZATION, nanos);
+        }
+
+        @Override
+        public void postStarted(String url, int recipients, long bytes) {
+            metrics.requestSent(recipients, bytes);
+        }
+
+        @Override
+        public void requestFailed(IOException e, long nanos) {
+            metrics.requestFailed();
+            metrics.stageCompleted(Stage.NETWORK, nanos);
+        }
+
+        @Override
+        public void responseReceived(int status, long bytes, long nanos) {
+            metrics.responseReceived(status, bytes);
+            metrics.stageCompleted(Stage.NETWORK, nanos);
+        }
+
+        @Override
+        public void responseParsed(List<Result> results, long nanos) {
+            for (int i = 0; i < results.size(); i++) {
+                GcmError error = results.get(i).getError();
+                if (error != null) {
+                    metrics.errorReceived(error);
+                }
+            }
+            metrics.stageCompleted(Stage.PARSE, nanos);
+        }
+
+        @Override
+        public void retryScheduled(int attempt, int recipients, long backoffMillis) {
+            metrics.retryScheduled(backoffMillis);
+        }
+    }
+
+    /**
+     * Notifies two listeners, in order.
+     */
+    private static final class Pair implements SendListener {
+
+        private final SendListener first;
+        private final SendListener second;
+
+        Pair(SendListener first, SendListener second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void messageEnqueued(String registrationId, int queued) {
+            first.messageEnqueued(registrationId, queued);
+            second.messageEnqueued(registrationId, queued);
+        }
+
+        @Override
+        public void messageDequeued(String registrationId, long waitNanos) {
+            first.messageDequeued(registrationId, waitNanos);
+            second.messageDequeued(registrationId, waitNanos);
+        }
+
+        @Override
+        public void capacityAcquired(int recipients, long waitNanos) {
+            first.capacityAcquired(recipients, waitNanos);
+            second.capacityAcquired(recipients, waitNanos);
+        }
+
+        @Override
+        public void devicesSkipped(int notRegistered, int rateLimited) {
+            first.devicesSkipped(notRegistered, rateLimited);
+            second.devicesSkipped(notRegistered, rateLimited);
+        }
+
+        @Override
+        public void requestSerialized(int recipients, long bytes, long nanos) {
+            first.requestSerialized(recipients, bytes, nanos);
+            second.requestSerialized(recipients, bytes, nanos);
+        }
+
+        @Override
+        public void postStarted(String url, int recipients, long bytes) {
+            first.postStarted(url, recipients, bytes);
+            second.postStarted(url, recipients, bytes);
+        }
+
+        @Override
+        public void requestFailed(IOException e, long nanos) {
+            first.requestFailed(e, nanos);
+            second.requestFailed(e, nanos);
+        }
+
+        @Override
+        public void responseReceived(int status, long bytes, long nanos) {
+            first.responseReceived(status, bytes, nanos);
+            second.responseReceived(status, bytes, nanos);
+        }
+
+        @Override
+        public void responseParsed(List<Result> results, long nanos) {
+            first.responseParsed(results, nanos);
+            second.responseParsed(results, nanos);
+        }
+
+        @Override
+        public void retryScheduled(int attempt, int recipients, long backoffMillis) {
+            first.retryScheduled(attempt, recipients, backoffMillis);
+            second.retryScheduled(attempt, recipients, backoffMillis);
+        }
+
+        @Override
+        public void sendCompleted(Result result, long nanos) {
+            first.sendCompleted(result, nanos);
+            second.sendCompleted(result, nanos);
+        }
+
+        @Override
+        public void multicastCompleted(MulticastResult result, long nanos) {
+            first.multicastCompleted(result, nanos);
+            second.multicastCompleted(result, nanos);
+        }
+
+        @Override
+        public void sendFailed(IOException e, long nanos) {
+            first.sendFailed(e, nanos);
+            second.sendFailed(e, nanos);
+        }
+    }
+
+}
@@ -13,7 +13,6 @@
  */
 package com.google.android.gcm.server;
 
-import static com.google.android.gcm.server.Constants.GCM_SEND_ENDPOINT;
 import static com.google.android.gcm.server.Constants.JSON_CANONICAL_IDS;
 import static com.google.android.gcm.server.Constants.JSON_ERROR;
 import static com.google.android.gcm.server.Constants.JSON_FAILURE;
@@ -46,16 +45,28 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
+import java.util.RandomAccess;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -75,10 +86,27 @@ public class Sender {
      */
     protected static final int    MAX_BACKOFF_DELAY     = 1024000;
 
-    protected final Random        random                = new Random();
+    protected final Random        random;
     protected static final Logger logger                = Logger.getLogger(Sender.class.getName());
 
-    private final String          key;
+    private final String            key;
+    private final SenderConfig      config;
+    // null when the sends in flight are not limited
+    private final InFlightLimiter   inFlight;
+    // deadline of the send running on each thread, which bounds the timeouts of its requests
+    private final ThreadLocal<Long> deadline = new ThreadLocal<Long>();
+
+    private volatile Clock             clock = Clock.SYSTEM;
+    private volatile CanonicalIdCache  canonicalIdCache;
+    private volatile DeadTokenFilter   deadTokenFilter;
+    private volatile DeviceRateLimiter deviceRateLimiter;
+    private volatile RetryBudget       retryBudget = RetryBudget.shared();
+    private volatile Executor          executor;
+    private volatile BatchSizer        batchSizer;
+    // combination of the metrics and the send listener, notified by the send path
+    private volatile SendListener      instrumentation;
+    private SenderMetrics              metrics;
+    private SendListener               sendListener;
 
     /**
      * Default constructor.
@@ -86,7 +114,289 @@ public class Sender {
      * @param key API key obtained through the Google API Console.
      */
     public Sender(String key) {
+        this(key, new SenderConfig.Builder().build());
+    }
+
+    /**
+     * Creates a sender with a custom endpoint, timeouts or deadline.
+     *
+     * @param key API key obtained through the Google API Console.
+     * @param config configuration of the connections.
+     */
+    public Sender(String key, SenderConfig config) {
+        this(key, config, new Random());
+    }
+
+    /**
+     * Creates a sender using a given random generator for the jitter of the retries, which can be
+     * seeded to make the retries deterministic.
+     *
+     * @param key API key obtained through the Google API Console.
+     * @param config configuration of the connections.
+     * @param random random generator for the jitter of the retries.
+     */
+    protected Sender(String key, SenderConfig config, Random random) {
         this.key = nonNull(key);
+        this.config = nonNull(config);
+        this.random = nonNull(random);
+        if (config.getMaxInFlightRequests() > 0 || config.getMaxInFlightRecipients() > 0) {
+            inFlight = new InFlightLimiter(config.getMaxInFlightRequests(),
+                    config.getMaxInFlightRecipients());
+        }
+        else {
+            inFlight = null;
+        }
+        if (!config.getEndpoint().startsWith("https://")) {
+            logger.warning("URL does not use https: " + config.getEndpoint());
+        }
+    }
+
+    /**
+     * Gets the configuration of the connections.
+     */
+    public SenderConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Gets the number of sends that can be started without waiting, see
+     * {@link SenderConfig.Builder#maxInFlightRequests(int)}.
+     */
+    public int getAvailableRequests() {
+        return inFlight == null ? Integer.MAX_VALUE : inFlight.getAvailableRequests();
+    }
+
+    /**
+     * Gets the number of devices that can be sent without waiting, see
+     * {@link SenderConfig.Builder#maxInFlightRecipients(int)}.
+     */
+    public int getAvailableRecipients() {
+        return inFlight == null ? Integer.MAX_VALUE : inFlight.getAvailableRecipients();
+    }
+
+    /**
+     * Gets the number of threads waiting for in-flight capacity.
+     */
+    public int getWaitingSends() {
+        return inFlight == null ? 0 : inFlight.getQueueLength();
+    }
+
+    /**
+     * Adds a listener notified each time a send releases its in-flight capacity. Listeners are
+     * never notified if the sends in flight are not limited by the configuration.
+     */
+    public void addCapacityListener(CapacityListener listener) {
+        if (inFlight != null) {
+            inFlight.addListener(listener);
+        }
+    }
+
+    /**
+     * Removes a listener added by {@link #addCapacityListener(CapacityListener)}.
+     */
+    public void removeCapacityListener(CapacityListener listener) {
+        if (inFlight != null) {
+            inFlight.removeListener(listener);
+        }
+    }
+
+    /**
+     * Sets the clock used to wait between retries and to time the requests, by default
+     * {@link Clock#SYSTEM}.
+     */
+    public void setClock(Clock clock) {
+        this.clock = nonNull(clock);
+    }
+
+    /**
+     * Gets the clock used to wait between retries and to time the requests.
+     */
+    public Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Sets the cache used to rewrite devices to their canonical registration ids before sending.
+     *
+     * <p>
+     * When set, the cache is updated with the canonical ids returned by GCM, devices are rewritten
+     * to their canonical ids, and duplicated devices on a multicast are only sent once. The results
+     * of rewritten devices contain the canonical id, as if it was returned by GCM, so the
+     * application datastore can still be updated.
+     *
+     * @param cache the cache, or {@literal null} to disable the rewriting.
+     */
+    public void setCanonicalIdCache(CanonicalIdCache cache) {
+        canonicalIdCache = cache;
+    }
+
+    /**
+     * Gets the cache used to rewrite devices to their canonical registration ids, if any.
+     */
+    public CanonicalIdCache getCanonicalIdCache() {
+        return canonicalIdCache;
+    }
+
+    /**
+     * Sets the filter used to skip devices that GCM already reported as invalid.
+     *
+     * <p>
+     * When set, the registration ids of results flagged as {@link GcmError#INVALID_TOKEN} are
+     * added to the filter, and devices in the filter are not sent anymore: instead, they get a
+     * {@link Constants#ERROR_SKIPPED_NOT_REGISTERED} result built locally, without a request to
+     * GCM. That error is not flagged as {@link GcmError#INVALID_TOKEN}, so a false positive of the
+     * filter does not get the registration id removed (e.g. by {@link TokenHygiene}).
+     *
+     * @param filter the filter, or {@literal null} to send to every device.
+     */
+    public void setDeadTokenFilter(DeadTokenFilter filter) {
+        deadTokenFilter = filter;
+    }
+
+    /**
+     * Gets the filter used to skip devices that GCM already reported as invalid, if any.
+     */
+    public DeadTokenFilter getDeadTokenFilter() {
+        return deadTokenFilter;
+    }
+
+    /**
+     * Sets the limiter of the messages sent to each device.
+     *
+     * <p>
+     * When set, devices that exceeded their limit are not sent: instead, they get a
+     * {@link Constants#ERROR_DEVICE_QUOTA_EXCEEDED} result built locally, without a request to GCM,
+     * so the message can be sent again later. Each call to a send method counts as one message per
+     * device, regardless of its retries.
+     *
+     * @param limiter the limiter, or {@literal null} to send to every device.
+     */
+    public void setDeviceRateLimiter(DeviceRateLimiter limiter) {
+        deviceRateLimiter = limiter;
+    }
+
+    /**
+     * Gets the limiter of the messages sent to each device, if any.
+     */
+    public DeviceRateLimiter getDeviceRateLimiter() {
+        return deviceRateLimiter;
+    }
+
+    /**
+     * Sets the budget limiting the retries, which should be shared by all the senders; by default,
+     * the {@linkplain RetryBudget#shared() budget shared by the process}.
+     *
+     * <p>
+     * When set, each send deposits its first attempt in the budget, and its retries are only made
+     * if the budget allows them; otherwise the send fails with a
+     * {@link RetryBudgetExhaustedException}, or, for a multicast that already got results, returns
+     * them with the pending devices keeping the error of their last attempt.
+     *
+     * @param budget the budget, or {@literal null} to retry as many times as requested (for
+     *            instance with a custom clock, which the shared budget does not follow).
+     */
+    public void setRetryBudget(RetryBudget budget) {
+        retryBudget = budget;
+    }
+
+    /**
+     * Gets the budget limiting the retries, if any.
+     */
+    public RetryBudget getRetryBudget() {
+        return retryBudget;
+    }
+
+    /**
+     * Sets the executor sending the multicast chunks of the bulk sends
+     * ({@link #sendPersonalized(List, List, int, ResultListener)} and
+     * {@link #sendAll(Collection, int)}) in parallel, with one task per chunk, or per send
+     * allowed in flight if the configuration limits them.
+     *
+     * <p>
+     * Each task blocks its thread while sending, retries included, so the executor should not
+     * bound the number of threads, like {@link SenderThreads#newThreadPerTaskExecutor(String)}
+     * which uses virtual threads when available.
+     *
+     * @param executor the executor, or {@literal null} to send the chunks one after the other on
+     *            the calling thread.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets the executor sending the multicast chunks of the bulk sends, if any.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the sizer adapting the number of devices of the multicast chunks of the bulk sends to
+     * the latency and the errors of the requests, see {@link BatchSizer}.
+     *
+     * <p>
+     * Chunks are cut as they are started, so the size adapts within a bulk send.
+     *
+     * @param sizer the sizer, or {@literal null} to send chunks of
+     *            {@link Constants#MAX_MULTICAST_SIZE} devices.
+     */
+    public void setBatchSizer(BatchSizer sizer) {
+        batchSizer = sizer;
+    }
+
+    /**
+     * Gets the sizer adapting the number of devices of the multicast chunks, if any.
+     */
+    public BatchSizer getBatchSizer() {
+        return batchSizer;
+    }
+
+    /**
+     * Sets the metrics updated with the requests made to GCM, their latencies and their results.
+     *
+     * @param metrics the metrics, or {@literal null} to not measure anything.
+     */
+    public synchronized void setMetrics(SenderMetrics metrics) {
+        this.metrics = metrics;
+        instrumentation = SendListeners.of(metrics, sendListener);
+    }
+
+    /**
+     * Gets the metrics updated with the requests made to GCM, if any.
+     */
+    public synchronized SenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the listener notified of the lifecycle of the messages sent, see {@link SendListener}
+     * for the events.
+     *
+     * <p>
+     * No event is built when there is neither a listener nor metrics, so sending is not slowed
+     * down.
+     *
+     * @param listener the listener, or {@literal null} to not notify anything.
+     */
+    public synchronized void setSendListener(SendListener listener) {
+        sendListener = listener;
+        instrumentation = SendListeners.of(metrics, listener);
+    }
+
+    /**
+     * Gets the listener notified of the lifecycle of the messages sent, if any.
+     */
+    public synchronized SendListener getSendListener() {
+        return sendListener;
+    }
+
+    /**
+     * Gets the listener notified by the send path, combining the metrics and the send listener, or
+     * {@literal null} if there are none.
+     */
+    SendListener getInstrumentation() {
+        return instrumentation;
     }
 
     /**
@@ -103,24 +413,122 @@ public class Sender {
      * @return result of the request (see its javadoc for more details).
      *
      * @throws IllegalArgumentException if registrationId is {@literal null}.
+     * @throws MessageTooBigException if the message payload exceeds
+     *             {@link Constants#MAX_PAYLOAD_SIZE}.
      * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
      * @throws IOException if message could not be sent.
      */
     public Result send(Message message, String registrationId, int retries) throws IOException {
+        return send(message, registrationId, retries, true);
+    }
+
+    /**
+     * Sends a message to one device like {@link #send(Message, String, int)}, unless the sends in
+     * flight already reached the limits of the configuration.
+     *
+     * @return result of the request, or {@literal null} if the send was rejected for lack of
+     *         in-flight capacity.
+     */
+    public Result trySend(Message message, String registrationId, int retries)
+            throws IOException {
+        return send(message, registrationId, retries, false);
+    }
+
+    /**
+     * Sends a message to one device, once it got its in-flight capacity, and notifies its
+     * completion.
+     *
+     * @param wait whether to wait for capacity, or else to return {@literal null} at once.
+     */
+    private Result send(Message message, String registrationId, int retries, boolean wait)
+            throws IOException {
+        SendListener sendListener = instrumentation;
+        long start = sendListener == null ? 0 : clock.nanoTime();
+        Long sendDeadline = startDeadline(null);
+        Result result;
+        try {
+            if (!admit(1, wait, sendDeadline)) {
+                return null;
+            }
+            try {
+                result = sendWithRetries(message, registrationId, retries);
+            }
+            finally {
+                release(1);
+            }
+        }
+        catch (IOException e) {
+            if (sendListener != null) {
+                sendListener.sendFailed(e, clock.nanoTime() - start);
+            }
+            throw e;
+        }
+        finally {
+            endDeadline(sendDeadline);
+        }
+        if (sendListener != null) {
+            sendListener.sendCompleted(result, clock.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * Sends a message to one device, retrying in case of unavailability, without notifying its
+     * completion. See {@link #send(Message, String, int)} for more info.
+     */
+    private Result sendWithRetries(Message message, String registrationId, int retries)
+            throws IOException {
+        checkPayloadSize(message);
+        CanonicalIdCache cache = canonicalIdCache;
+        String canonicalId = cache == null ? null : cache.get(nonNull(registrationId));
+        String target = canonicalId == null ? registrationId : canonicalId;
+        DeadTokenFilter filter = deadTokenFilter;
+        if (filter != null && filter.mightContain(target)) {
+            logger.fine("Skipping device known to be not registered");
+            SendListener sendListener = instrumentation;
+            if (sendListener != null) {
+                sendListener.devicesSkipped(1, 0);
+            }
+            return Audience.localResult(Constants.ERROR_SKIPPED_NOT_REGISTERED);
+        }
+        DeviceRateLimiter limiter = deviceRateLimiter;
+        if (limiter != null && !limiter.tryAcquire(target)) {
+            logger.fine("Skipping device that exceeded its rate limit");
+            SendListener sendListener = instrumentation;
+            if (sendListener != null) {
+                sendListener.devicesSkipped(0, 1);
+            }
+            return Audience.localResult(Constants.ERROR_DEVICE_QUOTA_EXCEEDED);
+        }
         int attempt = 0;
         Result result = null;
         int backoff = BACKOFF_INITIAL_DELAY;
         boolean tryAgain;
+        RetryBudget budget = retryBudget;
+        if (budget != null) {
+            budget.recordAttempt();
+        }
+        Long sendDeadline = deadline.get();
         do {
             attempt++;
             if (logger.isLoggable(Level.FINE)) {
-                logger.fine("Attempt #" + attempt + " to send message " + message + " to regIds "
-                        + registrationId);
+                logger.fine("Attempt #" + attempt + " to send message "
+                        + LogFormat.body(message.toString()) + " to " + LogFormat.id(target));
             }
-            result = sendNoRetry(message, registrationId);
+            result = sendOnce(message, target);
             tryAgain = result == null && attempt <= retries;
             if (tryAgain) {
                 int sleepTime = backoff / 2 + random.nextInt(backoff);
+                if (sendDeadline != null && remainingMillis(sendDeadline) <= sleepTime) {
+                    throw new DeadlineExceededException(config.getDeadlineMillis(), attempt);
+                }
+                if (budget != null && !budget.tryAcquireRetry()) {
+                    throw new RetryBudgetExhaustedException(attempt);
+                }
+                SendListener sendListener = instrumentation;
+                if (sendListener != null) {
+                    sendListener.retryScheduled(attempt, 1, sleepTime);
+                }
                 sleep(sleepTime);
                 if (2 * backoff < MAX_BACKOFF_DELAY) {
                     backoff *= 2;
@@ -131,6 +539,20 @@ public class Sender {
         if (result == null) {
             throw new IOException("Could not send message after " + attempt + " attempts");
         }
+        if (filter != null && result.getError() != null && result.getError().isInvalidToken()) {
+            filter.add(target);
+        }
+        if (cache != null) {
+            String resultCanonicalId = result.getCanonicalRegistrationId();
+            if (resultCanonicalId != null) {
+                cache.put(registrationId, resultCanonicalId);
+            }
+            else if (canonicalId != null && result.getMessageId() != null) {
+                // let the caller know the device was rewritten, as if GCM returned the canonical id
+                result = new Result.Builder().messageId(result.getMessageId())
+                        .canonicalRegistrationId(canonicalId).build();
+            }
+        }
         return result;
     }
 
@@ -143,61 +565,57 @@ public class Sender {
      *
      * @throws InvalidRequestException if GCM didn't returned a 200 or 5xx status.
      * @throws IllegalArgumentException if registrationId is {@literal null}.
+     * @throws MessageTooBigException if the message payload exceeds
+     *             {@link Constants#MAX_PAYLOAD_SIZE}.
      */
     public Result sendNoRetry(Message message, String registrationId) throws IOException {
-        StringBuilder body = newBody(PARAM_REGISTRATION_ID, registrationId);
-        Boolean delayWhileIdle = message.isDelayWhileIdle();
-        if (delayWhileIdle != null) {
-            addParameter(body, PARAM_DELAY_WHILE_IDLE, delayWhileIdle ? "1" : "0");
-        }
-        Boolean dryRun = message.isDryRun();
-        if (dryRun != null) {
-            addParameter(body, PARAM_DRY_RUN, dryRun ? "1" : "0");
-        }
-        String collapseKey = message.getCollapseKey();
-        if (collapseKey != null) {
-            addParameter(body, PARAM_COLLAPSE_KEY, collapseKey);
-        }
-        String restrictedPackageName = message.getRestrictedPackageName();
-        if (restrictedPackageName != null) {
-            addParameter(body, PARAM_RESTRICTED_PACKAGE_NAME, restrictedPackageName);
+        admit(1, true, null);
+        try {
+            return sendOnce(message, registrationId);
         }
-        Integer timeToLive = message.getTimeToLive();
-        if (timeToLive != null) {
-            addParameter(body, PARAM_TIME_TO_LIVE, Integer.toString(timeToLive));
+        finally {
+            release(1);
         }
-        for (Entry<String, String> entry : message.getData().entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-            if (key == null || value == null) {
-                logger.warning("Ignoring payload entry thas has null: " + entry);
-            }
-            else {
-                key = PARAM_PAYLOAD_PREFIX + key;
-                addParameter(body, key, URLEncoder.encode(value, UTF8));
-            }
+    }
+
+    /**
+     * Sends a message to one device with a single request, once the send got its in-flight
+     * capacity. See {@link #sendNoRetry(Message, String)} for more info.
+     */
+    private Result sendOnce(Message message, String registrationId) throws IOException {
+        checkPayloadSize(message);
+        SendListener sendListener = instrumentation;
+        long start = sendListener == null ? 0 : clock.nanoTime();
+        String requestBody = plainRequestBody(message, registrationId);
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("Request body: " + LogFormat.body(requestBody));
         }
-        String requestBody = body.toString();
-        logger.finest("Request body: " + requestBody);
+        start = requestSerialized(sendListener, 1, requestBody, start);
         HttpURLConnection conn;
         int status;
         try {
-            conn = post(GCM_SEND_ENDPOINT, requestBody);
+            conn = post(config.getEndpoint(), requestBody);
             status = conn.getResponseCode();
         }
         catch (IOException e) {
             logger.log(Level.FINE, "IOException posting to GCM", e);
+            requestFailed(sendListener, e, start);
             return null;
         }
         if (status / 100 == 5) {
-            logger.fine("GCM service is unavailable (status " + status + ")");
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("GCM service is unavailable (status " + status + ")");
+            }
+            responseReceived(sendListener, status, null, start);
             return null;
         }
         String responseBody;
         if (status != 200) {
             try {
                 responseBody = getAndClose(conn.getErrorStream());
-                logger.finest("Plain post error response: " + responseBody);
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.finest("Plain post error response: " + LogFormat.body(responseBody));
+                }
             }
             catch (IOException e) {
                 // ignore the exception since it will thrown an InvalidRequestException
@@ -205,6 +623,7 @@ public class Sender {
                 responseBody = "N/A";
                 logger.log(Level.FINE, "Exception reading response: ", e);
             }
+            responseReceived(sendListener, status, responseBody, start);
             throw new InvalidRequestException(status, responseBody);
         }
         else {
@@ -213,10 +632,63 @@ public class Sender {
             }
             catch (IOException e) {
                 logger.log(Level.WARNING, "Exception reading response: ", e);
+                requestFailed(sendListener, e, start);
                 // return null so it can retry
                 return null;
             }
         }
+        start = responseReceived(sendListener, status, responseBody, start);
+        Result result = parsePlainResponse(responseBody);
+        if (sendListener != null) {
+            sendListener.responseParsed(Collections.singletonList(result),
+                    clock.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * Builds the body of a plain text post.
+     */
+    String plainRequestBody(Message message, String registrationId) throws IOException {
+        StringBuilder body = newBody(PARAM_REGISTRATION_ID, registrationId);
+        Boolean delayWhileIdle = message.isDelayWhileIdle();
+        if (delayWhileIdle != null) {
+            addParameter(body, PARAM_DELAY_WHILE_IDLE, delayWhileIdle ? "1" : "0");
+        }
+        Boolean dryRun = message.isDryRun();
+        if (dryRun != null) {
+            addParameter(body, PARAM_DRY_RUN, dryRun ? "1" : "0");
+        }
+        String collapseKey = message.getCollapseKey();
+        if (collapseKey != null) {
+            addParameter(body, PARAM_COLLAPSE_KEY, collapseKey);
+        }
+        String restrictedPackageName = message.getRestrictedPackageName();
+        if (restrictedPackageName != null) {
+            addParameter(body, PARAM_RESTRICTED_PACKAGE_NAME, restrictedPackageName);
+        }
+        Integer timeToLive = message.getTimeToLive();
+        if (timeToLive != null) {
+            addParameter(body, PARAM_TIME_TO_LIVE, Integer.toString(timeToLive));
+        }
+        for (Entry<String, String> entry : message.getData().entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (key == null || value == null) {
+                logger.warning("Ignoring payload entry thas has null: " + entry);
+            }
+            else {
+                key = PARAM_PAYLOAD_PREFIX + key;
+                addParameter(body, key, URLEncoder.encode(value, UTF8));
+            }
+        }
+        return body.toString();
+    }
+
+    /**
+     * Parses the response of a plain text post.
+     */
+    Result parsePlainResponse(String responseBody) throws IOException {
         String[] lines = responseBody.split("\n");
         if (lines.length == 0 || lines[0].equals("")) {
             throw new IOException("Received empty response from GCM service.");
@@ -237,12 +709,13 @@ public class Sender {
                     builder.canonicalRegistrationId(value);
                 }
                 else {
-                    logger.warning("Invalid response from GCM: " + responseBody);
+                    logger.warning("Invalid response from GCM: " + LogFormat.body(responseBody));
                 }
             }
             Result result = builder.build();
             if (logger.isLoggable(Level.FINE)) {
-                logger.fine("Message created succesfully (" + result + ")");
+                logger.fine("Message created succesfully (" + LogFormat.body(result.toString())
+                        + ")");
             }
             return result;
         }
@@ -250,7 +723,7 @@ public class Sender {
             return new Result.Builder().errorCode(value).build();
         }
         else {
-            throw new IOException("Invalid response from GCM: " + responseBody);
+            throw new IOException("Invalid response from GCM: " + LogFormat.body(responseBody));
         }
     }
 
@@ -268,46 +741,224 @@ public class Sender {
      * @return combined result of all requests made.
      *
      * @throws IllegalArgumentException if registrationIds is {@literal null} or empty.
+     * @throws MessageTooBigException if the message payload exceeds
+     *             {@link Constants#MAX_PAYLOAD_SIZE}.
      * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
      * @throws IOException if message could not be sent.
      */
     public MulticastResult send(Message message, List<String> regIds, int retries)
             throws IOException {
+        return send(message, regIds, retries, null);
+    }
+
+    /**
+     * Sends a message to many devices, retrying in case of unavailability, and notifies the final
+     * result of each device as soon as it is known. See {@link #send(Message, List, int)} for more
+     * info.
+     *
+     * @param listener listener notified of the final result of each device, or {@literal null}.
+     *            Devices are not notified if no request could be made at all, in which case an
+     *            {@link IOException} is thrown.
+     */
+    public MulticastResult send(Message message, List<String> regIds, int retries,
+            ResultListener listener) throws IOException {
+        return send(message, regIds, retries, listener, true, null);
+    }
+
+    /**
+     * Sends a message to many devices like {@link #send(Message, List, int, ResultListener)},
+     * unless the sends in flight already reached the limits of the configuration.
+     *
+     * @return combined result of all requests made, or {@literal null} if the send was rejected
+     *         for lack of in-flight capacity, in which case no device is notified.
+     */
+    public MulticastResult trySend(Message message, List<String> regIds, int retries,
+            ResultListener listener) throws IOException {
+        return send(message, regIds, retries, listener, false, null);
+    }
+
+    /**
+     * Sends a message to many devices, once it got its in-flight capacity, and notifies its
+     * completion.
+     *
+     * @param wait whether to wait for capacity, or else to return {@literal null} at once.
+     * @param callDeadline deadline of the bulk send the send is part of, or {@literal null} to
+     *            start a new one.
+     */
+    private MulticastResult send(Message message, List<String> regIds, int retries,
+            ResultListener listener, boolean wait, Long callDeadline) throws IOException {
+        int recipients = nonNull(regIds).size();
+        SendListener sendListener = instrumentation;
+        long start = sendListener == null ? 0 : clock.nanoTime();
+        Long sendDeadline = startDeadline(callDeadline);
+        MulticastResult multicastResult;
+        try {
+            if (!admit(recipients, wait, sendDeadline)) {
+                return null;
+            }
+            try {
+                multicastResult = sendWithRetries(message, regIds, retries, listener);
+            }
+            finally {
+                release(recipients);
+            }
+        }
+        catch (IOException e) {
+            if (sendListener != null) {
+                sendListener.sendFailed(e, clock.nanoTime() - start);
+            }
+            throw e;
+        }
+        finally {
+            endDeadline(sendDeadline);
+        }
+        if (sendListener != null) {
+            sendListener.multicastCompleted(multicastResult, clock.nanoTime() - start);
+        }
+        return multicastResult;
+    }
+
+    /**
+     * Sends a message to many devices, retrying in case of unavailability, without notifying its
+     * completion. See {@link #send(Message, List, int, ResultListener)} for more info.
+     */
+    private MulticastResult sendWithRetries(Message message, List<String> regIds, int retries,
+            ResultListener listener) throws IOException {
+        checkPayloadSize(message);
+        if (!(nonNull(regIds) instanceof RandomAccess)) {
+            regIds = new ArrayList<String>(regIds);
+        }
+        CanonicalIdCache cache = canonicalIdCache;
+        DeadTokenFilter filter = deadTokenFilter;
+        DeviceRateLimiter limiter = deviceRateLimiter;
+        if (cache == null && filter == null && limiter == null) {
+            return sendMulticast(message, regIds, retries, listener);
+        }
+        Audience audience = Audience.prepare(regIds, cache, filter, limiter);
+        MulticastResult multicastResult;
+        if (audience == null) {
+            multicastResult = sendMulticast(message, regIds, retries, listener);
+        }
+        else {
+            List<String> targets = audience.getTargets();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Prepared " + regIds.size() + " devices into " + targets.size()
+                        + " registration ids, skipping " + audience.getSkipped());
+            }
+            audience.notifySkipped(listener);
+            SendListener sendListener = instrumentation;
+            if (sendListener != null && audience.getSkipped() > 0) {
+                sendListener.devicesSkipped(
+                        audience.getSkipped(GcmError.SKIPPED_NOT_REGISTERED),
+                        audience.getSkipped(GcmError.DEVICE_QUOTA_EXCEEDED));
+            }
+            multicastResult = audience.merge(targets.isEmpty() ? null : sendMulticast(message,
+                    targets, retries, audience.wrap(listener)));
+        }
+        List<Result> results = multicastResult.getResults();
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            String canonicalId = result.getCanonicalRegistrationId();
+            if (cache != null && canonicalId != null) {
+                cache.put(regIds.get(i), canonicalId);
+            }
+            GcmError error = result.getError();
+            if (filter != null && error != null && error.isInvalidToken()) {
+                // the id that was actually sent, as checked by Audience.prepare()
+                filter.add(audience == null ? regIds.get(i) : audience.getSentId(i));
+            }
+        }
+        return multicastResult;
+    }
+
+    /**
+     * Sends a message to many devices, retrying in case of unavailability, without rewriting the
+     * devices. See {@link #send(Message, List, int, ResultListener)} for more info.
+     */
+    private MulticastResult sendMulticast(Message message, List<String> regIds, int retries,
+            ResultListener listener) throws IOException {
         int attempt = 0;
         MulticastResult multicastResult;
         int backoff = BACKOFF_INITIAL_DELAY;
-        // Map of results by registration id, it will be updated after each attempt
-        // to send the messages
-        Map<String, Result> results = new HashMap<String, Result>();
-        List<String> unsentRegIds = new ArrayList<String>(regIds);
+        // Results by position on the input, it will be updated after each attempt to send the
+        // messages; positions are used instead of the registration ids so that duplicated ids
+        // get their own result and the ids are not hashed over and over
+        Result[] results = new Result[regIds.size()];
+        // Positions of the devices that are still pending, only the first pendingCount are valid
+        int[] pending = new int[regIds.size()];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = i;
+        }
+        int pendingCount = pending.length;
+        List<String> unsentRegIds = regIds;
         boolean tryAgain;
         List<Long> multicastIds = new ArrayList<Long>();
+        RetryBudget budget = retryBudget;
+        if (budget != null) {
+            budget.recordAttempt();
+        }
+        Long sendDeadline = deadline.get();
         do {
             multicastResult = null;
             attempt++;
             if (logger.isLoggable(Level.FINE)) {
-                logger.fine("Attempt #" + attempt + " to send message " + message + " to regIds "
-                        + unsentRegIds);
+                logger.fine("Attempt #" + attempt + " to send message "
+                        + LogFormat.body(message.toString()) + " to "
+                        + LogFormat.ids(unsentRegIds));
             }
             try {
-                multicastResult = sendNoRetry(message, unsentRegIds);
+                multicastResult = sendOnce(message, unsentRegIds);
             }
             catch (IOException e) {
                 // no need for WARNING since exception might be already logged
-                logger.log(Level.FINEST, "IOException on attempt " + attempt, e);
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.log(Level.FINEST, "IOException on attempt " + attempt, e);
+                }
             }
             if (multicastResult != null) {
                 long multicastId = multicastResult.getMulticastId();
-                logger.fine("multicast_id on attempt # " + attempt + ": " + multicastId);
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("multicast_id on attempt # " + attempt + ": " + multicastId);
+                }
                 multicastIds.add(multicastId);
-                unsentRegIds = updateStatus(unsentRegIds, results, multicastResult);
-                tryAgain = !unsentRegIds.isEmpty() && attempt <= retries;
+                pendingCount = updateStatus(regIds, pending, pendingCount, results,
+                        multicastResult, listener);
+                tryAgain = pendingCount > 0 && attempt <= retries;
+                if (tryAgain) {
+                    unsentRegIds = new ArrayList<String>(pendingCount);
+                    for (int i = 0; i < pendingCount; i++) {
+                        unsentRegIds.add(regIds.get(pending[i]));
+                    }
+                }
             }
             else {
                 tryAgain = attempt <= retries;
             }
             if (tryAgain) {
                 int sleepTime = backoff / 2 + random.nextInt(backoff);
+                IOException giveUp = null;
+                if (sendDeadline != null && remainingMillis(sendDeadline) <= sleepTime) {
+                    giveUp = new DeadlineExceededException(config.getDeadlineMillis(),
+                            attempt);
+                }
+                else if (budget != null && !budget.tryAcquireRetry()) {
+                    giveUp = new RetryBudgetExhaustedException(attempt);
+                }
+                if (giveUp != null) {
+                    if (multicastIds.isEmpty()) {
+                        throw giveUp;
+                    }
+                    // the devices still pending keep the result of their last attempt
+                    if (logger.isLoggable(Level.FINE)) {
+                        logger.fine(giveUp.getMessage() + ", not retrying " + pendingCount
+                                + " devices");
+                    }
+                    break;
+                }
+                SendListener sendListener = instrumentation;
+                if (sendListener != null) {
+                    sendListener.retryScheduled(attempt, unsentRegIds.size(), sleepTime);
+                }
                 sleep(sleepTime);
                 if (2 * backoff < MAX_BACKOFF_DELAY) {
                     backoff *= 2;
@@ -320,9 +971,16 @@ public class Sender {
             throw new IOException("Could not post JSON requests to GCM after " + attempt
                     + " attempts");
         }
+        if (listener != null) {
+            // the devices still pending will not be retried anymore
+            for (int i = 0; i < pendingCount; i++) {
+                int index = pending[i];
+                listener.onResult(index, regIds.get(index), results[index]);
+            }
+        }
         // calculate summary
         int success = 0, failure = 0, canonicalIds = 0;
-        for (Result result : results.values()) {
+        for (Result result : results) {
             if (result.getMessageId() != null) {
                 success++;
                 if (result.getCanonicalRegistrationId() != null) {
@@ -336,10 +994,9 @@ public class Sender {
         // build a new object with the overall result
         long multicastId = multicastIds.remove(0);
         MulticastResult.Builder builder = new MulticastResult.Builder(success, failure,
-                canonicalIds, multicastId).retryMulticastIds(multicastIds);
+                canonicalIds, multicastId).retryMulticastIds(multicastIds).compactResults();
         // add results, in the same order as the input
-        for (String regId : regIds) {
-            Result result = results.get(regId);
+        for (Result result : results) {
             builder.addResult(result);
         }
         return builder.build();
@@ -349,33 +1006,42 @@ public class Sender {
      * Updates the status of the messages sent to devices and the list of devices that should be
      * retried.
      *
-     * @param unsentRegIds list of devices that are still pending an update.
-     * @param allResults map of status that will be updated.
+     * <p>
+     * The positions of the devices to be retried are moved, in order, to the beginning of the
+     * pending array.
+     *
+     * @param regIds registration ids of all the devices.
+     * @param pending positions (on the input) of the devices that are still pending an update.
+     * @param pendingCount number of valid positions on the pending array.
+     * @param allResults status by position, that will be updated.
      * @param multicastResult result of the last multicast sent.
+     * @param listener listener notified of the devices that will not be retried, or
+     *            {@literal null}.
      *
-     * @return updated version of devices that should be retried.
+     * @return number of devices that should be retried.
      */
-    private List<String> updateStatus(List<String> unsentRegIds, Map<String, Result> allResults,
-            MulticastResult multicastResult) {
+    int updateStatus(List<String> regIds, int[] pending, int pendingCount,
+            Result[] allResults, MulticastResult multicastResult, ResultListener listener) {
         List<Result> results = multicastResult.getResults();
-        if (results.size() != unsentRegIds.size()) {
+        if (results.size() != pendingCount) {
             // should never happen, unless there is a flaw in the algorithm
             throw new RuntimeException("Internal error: sizes do not match. " + "currentResults: "
-                    + results + "; unsentRegIds: " + unsentRegIds);
+                    + results + "; pendingCount: " + pendingCount);
         }
-        List<String> newUnsentRegIds = new ArrayList<String>();
-        for (int i = 0; i < unsentRegIds.size(); i++) {
-            String regId = unsentRegIds.get(i);
+        int newPendingCount = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            int index = pending[i];
             Result result = results.get(i);
-            allResults.put(regId, result);
-            String error = result.getErrorCodeName();
-            if (error != null
-                    && (error.equals(Constants.ERROR_UNAVAILABLE) || error
-                            .equals(Constants.ERROR_INTERNAL_SERVER_ERROR))) {
-                newUnsentRegIds.add(regId);
+            allResults[index] = result;
+            GcmError error = result.getError();
+            if (error != null && error.isRetryable()) {
+                pending[newPendingCount++] = index;
+            }
+            else if (listener != null) {
+                listener.onResult(index, regIds.get(index), result);
             }
         }
-        return newUnsentRegIds;
+        return newPendingCount;
     }
 
     /**
@@ -386,42 +1052,63 @@ public class Sender {
      *         but could be retried.
      *
      * @throws IllegalArgumentException if registrationIds is {@literal null} or empty.
+     * @throws MessageTooBigException if the message payload exceeds
+     *             {@link Constants#MAX_PAYLOAD_SIZE}.
      * @throws InvalidRequestException if GCM didn't returned a 200 status.
      * @throws IOException if there was a JSON parsing error
      */
     public MulticastResult sendNoRetry(Message message, List<String> registrationIds)
             throws IOException {
-        if (nonNull(registrationIds).isEmpty()) {
-            throw new IllegalArgumentException("registrationIds cannot be empty");
+        int recipients = nonNull(registrationIds).size();
+        admit(recipients, true, null);
+        try {
+            return sendOnce(message, registrationIds);
         }
-        Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
-        setJsonField(jsonRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
-        setJsonField(jsonRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
-        setJsonField(jsonRequest, PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
-        setJsonField(jsonRequest, PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
-        setJsonField(jsonRequest, PARAM_DRY_RUN, message.isDryRun());
-        jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
-        Map<String, String> payload = message.getData();
-        if (!payload.isEmpty()) {
-            jsonRequest.put(JSON_PAYLOAD, payload);
+        finally {
+            release(recipients);
+        }
+    }
+
+    /**
+     * Sends a message to many devices with a single request, once the send got its in-flight
+     * capacity. See {@link #sendNoRetry(Message, List)} for more info.
+     */
+    private MulticastResult sendOnce(Message message, List<String> registrationIds)
+            throws IOException {
+        checkPayloadSize(message);
+        if (nonNull(registrationIds).isEmpty()) {
+            throw new IllegalArgumentException("registrationIds cannot be empty");
         }
-        String requestBody = JSONValue.toJSONString(jsonRequest);
-        logger.finest("JSON request: " + requestBody);
+        SendListener sendListener = instrumentation;
+        long start = sendListener == null ? 0 : clock.nanoTime();
+        String requestBody = jsonRequestBody(message, registrationIds);
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("JSON request: " + LogFormat.body(requestBody));
+        }
+        start = requestSerialized(sendListener, registrationIds.size(), requestBody, start);
+        BatchSizer sizer = batchSizer;
+        long posted = sizer == null ? 0 : clock.nanoTime();
         HttpURLConnection conn;
         int status;
         try {
-            conn = post(GCM_SEND_ENDPOINT, "application/json", requestBody);
+            conn = post(config.getEndpoint(), "application/json", requestBody);
             status = conn.getResponseCode();
         }
         catch (IOException e) {
             logger.log(Level.FINE, "IOException posting to GCM", e);
+            requestFailed(sendListener, e, start);
+            if (sizer != null) {
+                sizer.requestFailed(registrationIds.size());
+            }
             return null;
         }
         String responseBody;
         if (status != 200) {
             try {
                 responseBody = getAndClose(conn.getErrorStream());
-                logger.finest("JSON error response: " + responseBody);
+                if (logger.isLoggable(Level.FINEST)) {
+                    logger.finest("JSON error response: " + LogFormat.body(responseBody));
+                }
             }
             catch (IOException e) {
                 // ignore the exception since it will thrown an InvalidRequestException
@@ -429,6 +1116,10 @@ public class Sender {
                 responseBody = "N/A";
                 logger.log(Level.FINE, "Exception reading response: ", e);
             }
+            responseReceived(sendListener, status, responseBody, start);
+            if (sizer != null) {
+                sizer.requestCompleted(registrationIds.size(), status, clock.nanoTime() - posted);
+            }
             throw new InvalidRequestException(status, responseBody);
         }
         try {
@@ -436,9 +1127,48 @@ public class Sender {
         }
         catch (IOException e) {
             logger.log(Level.WARNING, "IOException reading response", e);
+            requestFailed(sendListener, e, start);
+            if (sizer != null) {
+                sizer.requestFailed(registrationIds.size());
+            }
             return null;
         }
-        logger.finest("JSON response: " + responseBody);
+        if (sizer != null) {
+            sizer.requestCompleted(registrationIds.size(), status, clock.nanoTime() - posted);
+        }
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.finest("JSON response: " + LogFormat.body(responseBody));
+        }
+        start = responseReceived(sendListener, status, responseBody, start);
+        MulticastResult multicastResult = parseJsonResponse(responseBody);
+        if (sendListener != null) {
+            sendListener.responseParsed(multicastResult.getResults(), clock.nanoTime() - start);
+        }
+        return multicastResult;
+    }
+
+    /**
+     * Builds the body of a JSON post.
+     */
+    String jsonRequestBody(Message message, List<String> registrationIds) {
+        Map<Object, Object> jsonRequest = new HashMap<Object, Object>();
+        setJsonField(jsonRequest, PARAM_TIME_TO_LIVE, message.getTimeToLive());
+        setJsonField(jsonRequest, PARAM_COLLAPSE_KEY, message.getCollapseKey());
+        setJsonField(jsonRequest, PARAM_RESTRICTED_PACKAGE_NAME, message.getRestrictedPackageName());
+        setJsonField(jsonRequest, PARAM_DELAY_WHILE_IDLE, message.isDelayWhileIdle());
+        setJsonField(jsonRequest, PARAM_DRY_RUN, message.isDryRun());
+        jsonRequest.put(JSON_REGISTRATION_IDS, registrationIds);
+        Map<String, String> payload = message.getData();
+        if (!payload.isEmpty()) {
+            jsonRequest.put(JSON_PAYLOAD, payload);
+        }
+        return JSONValue.toJSONString(jsonRequest);
+    }
+
+    /**
+     * Parses the response of a JSON post.
+     */
+    MulticastResult parseJsonResponse(String responseBody) throws IOException {
         JSONParser parser = new JSONParser();
         JSONObject jsonResponse;
         try {
@@ -462,8 +1192,7 @@ public class Sender {
                     builder.addResult(result);
                 }
             }
-            MulticastResult multicastResult = builder.build();
-            return multicastResult;
+            return builder.build();
         }
         catch (ParseException e) {
             throw newIoException(responseBody, e);
@@ -473,10 +1202,485 @@ public class Sender {
         }
     }
 
+    /**
+     * Sends a personalized message to each device, retrying in case of unavailability.
+     *
+     * <p>
+     * Devices whose messages are equal (see {@link Message#equals(Object)}) are grouped together
+     * and the message is sent to each group using multicast requests of at most
+     * {@link Constants#MAX_MULTICAST_SIZE} devices (or as sized by the batch sizer of the sender,
+     * see {@link #setBatchSizer(BatchSizer)}), instead of one request per device. The requests
+     * are sent one after the other, or in parallel on the executor of the sender if any (see
+     * {@link #setExecutor(Executor)}). The deadline of the configuration, if any, bounds the
+     * whole call: the requests not started before it fail with a
+     * {@link DeadlineExceededException}.
+     *
+     * <p>
+     * <strong>Note: </strong> this method uses exponential back-off to retry in case of service
+     * unavailability and hence could block the calling thread for many seconds.
+     *
+     * @param messages message to be sent to each device, in the same order as the devices.
+     * @param regIds registration id of the devices that will receive the messages.
+     * @param retries number of retries in case of service unavailability errors.
+     *
+     * @return result of each individual message, in the same order as the input.
+     *
+     * @throws IllegalArgumentException if messages or regIds are {@literal null}, or if their
+     *             sizes do not match.
+     * @throws MessageTooBigException if the payload of any message exceeds
+     *             {@link Constants#MAX_PAYLOAD_SIZE}, in which case no message is sent at all.
+     * @throws InvalidRequestException if GCM didn't returned a 200 or 503 status.
+     * @throws IOException if message could not be sent.
+     */
+    public List<Result> sendPersonalized(List<Message> messages, List<String> regIds, int retries)
+            throws IOException {
+        return sendPersonalized(messages, regIds, retries, null);
+    }
+
+    /**
+     * Sends a personalized message to each device, retrying in case of unavailability, and
+     * notifies the final result of each device as soon as it is known. See
+     * {@link #sendPersonalized(List, List, int)} for more info.
+     *
+     * @param listener listener notified of the final result of each device, with its position on
+     *            the input, or {@literal null}. It must be thread-safe if the sender has an
+     *            executor.
+     */
+    public List<Result> sendPersonalized(List<Message> messages, List<String> regIds,
+            int retries, ResultListener listener) throws IOException {
+        int total = nonNull(regIds).size();
+        if (nonNull(messages).size() != total) {
+            throw new IllegalArgumentException("messages and regIds must have the same size");
+        }
+        // group the devices by message: each group is a linked list of indexes on the input,
+        // chained through the next array, so no boxing is needed even for huge audiences
+        Map<Message, int[]> groups = new LinkedHashMap<Message, int[]>();
+        int[] next = new int[total];
+        for (int i = 0; i < total; i++) {
+            Message message = nonNull(messages.get(i));
+            int[] group = groups.get(message);
+            if (group == null) {
+                checkPayloadSize(message);
+                // head, tail and size of the group
+                groups.put(message, new int[] { i, i, 1 });
+            }
+            else {
+                next[group[1]] = i;
+                group[1] = i;
+                group[2]++;
+            }
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Grouped " + total + " devices into " + groups.size() + " messages");
+        }
+        Long callDeadline = newDeadline();
+        List<ChunkGroup> chunkGroups = new ArrayList<ChunkGroup>(groups.size());
+        for (Entry<Message, int[]> entry : groups.entrySet()) {
+            int[] group = entry.getValue();
+            int[] positions = new int[group[2]];
+            int index = group[0];
+            for (int j = 0; j < positions.length; j++) {
+                positions[j] = index;
+                index = next[index];
+            }
+            chunkGroups.add(new ChunkGroup(entry.getKey(), regIds, positions, retries, listener,
+                    callDeadline));
+        }
+        sendChunks(chunkGroups, true);
+        Exception failure = null;
+        for (ChunkGroup group : chunkGroups) {
+            failure = combineFailures(failure, group.chunks);
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+        Result[] results = new Result[total];
+        for (ChunkGroup group : chunkGroups) {
+            for (Chunk chunk : group.chunks) {
+                List<Result> chunkResults = chunk.result.getResults();
+                for (int j = 0; j < chunkResults.size(); j++) {
+                    results[group.positions[chunk.from + j]] = chunkResults.get(j);
+                }
+            }
+        }
+        return Collections.unmodifiableList(new CompactResultList(Arrays.asList(results)));
+    }
+
+    /**
+     * Sends many messages, each to its own list of devices, retrying in case of unavailability.
+     *
+     * <p>
+     * Each batch is sent using multicast requests of at most {@link Constants#MAX_MULTICAST_SIZE}
+     * devices (or as sized by the batch sizer of the sender, see
+     * {@link #setBatchSizer(BatchSizer)}), which are interleaved across the batches (the first
+     * request of each batch, then the second one, and so on), so a big batch does not delay the
+     * small ones. The requests are sent one after the other, or in parallel on the executor of
+     * the sender if any (see {@link #setExecutor(Executor)}), sharing the in-flight limits, the
+     * device rate limiter and the retry budget of the sender: the total time depends on the
+     * throughput of the sender rather than on the number of batches. The deadline of the
+     * configuration, if any, bounds the whole call: the requests not started before it fail with
+     * a {@link DeadlineExceededException}.
+     *
+     * <p>
+     * A request failing does not stop the others: its exception is returned in the result of its
+     * batch, whose other requests keep their results, and its devices get a
+     * {@link Constants#ERROR_REQUEST_FAILED} result.
+     *
+     * <p>
+     * <strong>Note: </strong> this method uses exponential back-off to retry in case of service
+     * unavailability and hence could block the calling thread for many seconds.
+     *
+     * @param batches messages and devices to send them to.
+     * @param retries number of retries of each request in case of service unavailability errors.
+     *
+     * @return result of each batch, in the same order as the input.
+     *
+     * @throws IllegalArgumentException if batches or any of them is {@literal null}.
+     * @throws MessageTooBigException if the payload of any message exceeds
+     *             {@link Constants#MAX_PAYLOAD_SIZE}, in which case no message is sent at all.
+     * @throws InterruptedIOException if the thread was interrupted while waiting for the requests
+     *             sent by the executor.
+     */
+    public SendAllResult sendAll(Collection<MessageBatch> batches, int retries)
+            throws InterruptedIOException {
+        List<MessageBatch> batchList = new ArrayList<MessageBatch>(nonNull(batches));
+        Long callDeadline = newDeadline();
+        List<ChunkGroup> chunkGroups = new ArrayList<ChunkGroup>(batchList.size());
+        for (MessageBatch batch : batchList) {
+            checkPayloadSize(nonNull(batch).getMessage());
+            List<String> regIds = batch.getRegistrationIds();
+            int[] positions = new int[regIds.size()];
+            for (int j = 0; j < positions.length; j++) {
+                positions[j] = j;
+            }
+            chunkGroups.add(new ChunkGroup(batch.getMessage(), regIds, positions, retries,
+                    batch.getListener(), callDeadline));
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Sending " + batchList.size() + " messages");
+        }
+        sendChunks(chunkGroups, false);
+        MulticastResult[] results = new MulticastResult[batchList.size()];
+        Exception[] exceptions = new Exception[batchList.size()];
+        for (int i = 0; i < batchList.size(); i++) {
+            List<Chunk> chunks = chunkGroups.get(i).chunks;
+            exceptions[i] = combineFailures(null, chunks);
+            results[i] = combineResults(chunks);
+        }
+        return new SendAllResult(batchList, results, exceptions);
+    }
+
+    /**
+     * Sends groups of devices in chunks, on the executor of the sender if any, else on the calling
+     * thread, and waits for them.
+     *
+     * <p>
+     * Chunks are cut as they are started, taking a chunk of each group in turn (the first chunk of
+     * each group, then the second one, and so on) so a big group does not delay the small ones.
+     * On the executor, the chunks are started by as many tasks as sends are allowed in flight by
+     * the configuration, or one task per chunk if they are not limited.
+     *
+     * @param stopOnFailure whether to stop starting chunks once one failed.
+     */
+    private void sendChunks(List<ChunkGroup> groups, final boolean stopOnFailure)
+            throws InterruptedIOException {
+        final ChunkQueue queue = new ChunkQueue(groups, batchSizer);
+        Executor chunkExecutor = executor;
+        int chunks = queue.estimateChunks();
+        if (chunkExecutor == null || chunks <= 1) {
+            Chunk chunk;
+            while ((chunk = queue.next()) != null) {
+                chunk.run();
+                if (stopOnFailure && chunk.failure != null) {
+                    return;
+                }
+            }
+            return;
+        }
+        int maxInFlight = config.getMaxInFlightRequests();
+        int workers = maxInFlight > 0 ? Math.min(maxInFlight, chunks) : chunks;
+        final AtomicBoolean failed = new AtomicBoolean();
+        Runnable worker = new Runnable() {
+
+            @Override
+            public void run() {
+                Chunk chunk;
+                while (!(stopOnFailure && failed.get()) && (chunk = queue.next()) != null) {
+                    chunk.run();
+                    if (chunk.failure != null) {
+                        failed.set(true);
+                    }
+                }
+            }
+        };
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                FutureTask<Void> task = new FutureTask<Void>(worker, null);
+                tasks.add(task);
+                chunkExecutor.execute(task);
+            }
+        }
+        catch (RuntimeException e) {
+            cancel(tasks);
+            throw e;
+        }
+        for (FutureTask<Void> task : tasks) {
+            try {
+                task.get();
+            }
+            catch (InterruptedException e) {
+                cancel(tasks);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending chunks");
+            }
+            catch (ExecutionException e) {
+                // the chunks keep their exceptions, so only errors get here
+                cancel(tasks);
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    private static void cancel(List<? extends FutureTask<?>> tasks) {
+        for (FutureTask<?> task : tasks) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * Adds the exceptions of the chunks that failed to a previous exception, as suppressed
+     * exceptions, or else uses the first one.
+     *
+     * @param failure previous exception, or {@literal null}.
+     *
+     * @return the combined exception, or {@literal null} if there is none.
+     */
+    private static Exception combineFailures(Exception failure, List<Chunk> chunks) {
+        for (Chunk chunk : chunks) {
+            if (chunk.failure == null) {
+                continue;
+            }
+            if (failure == null) {
+                failure = chunk.failure;
+            }
+            else {
+                failure.addSuppressed(chunk.failure);
+            }
+        }
+        return failure;
+    }
+
+    /**
+     * Combines the results of the chunks of a batch, the multicast ids of all but the first
+     * request being given as retry multicast ids, and the devices of the chunks that failed
+     * getting a {@link Constants#ERROR_REQUEST_FAILED} result.
+     */
+    private static MulticastResult combineResults(List<Chunk> chunks) {
+        if (chunks.size() == 1 && chunks.get(0).result != null) {
+            return chunks.get(0).result;
+        }
+        int success = 0, failure = 0, canonicalIds = 0;
+        List<Long> multicastIds = new ArrayList<Long>();
+        for (Chunk chunk : chunks) {
+            MulticastResult result = chunk.result;
+            if (result == null) {
+                failure += chunk.to - chunk.from;
+                continue;
+            }
+            success += result.getSuccess();
+            failure += result.getFailure();
+            canonicalIds += result.getCanonicalIds();
+            multicastIds.add(result.getMulticastId());
+            multicastIds.addAll(result.getRetryMulticastIds());
+        }
+        // no multicast id if all the requests failed
+        long multicastId = multicastIds.isEmpty() ? 0 : multicastIds.remove(0);
+        MulticastResult.Builder builder = new MulticastResult.Builder(success, failure,
+                canonicalIds, multicastId).retryMulticastIds(multicastIds).compactResults();
+        Result failed = null;
+        for (Chunk chunk : chunks) {
+            if (chunk.result == null) {
+                if (failed == null) {
+                    failed = Audience.localResult(Constants.ERROR_REQUEST_FAILED);
+                }
+                for (int i = chunk.from; i < chunk.to; i++) {
+                    builder.addResult(failed);
+                }
+                continue;
+            }
+            for (Result result : chunk.result.getResults()) {
+                builder.addResult(result);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Acquires the in-flight capacity of a send, if the sends in flight are limited.
+     *
+     * @param recipients number of devices of the send.
+     * @param wait whether to wait for capacity, until the deadline of the send if any.
+     * @param sendDeadline deadline of the send, or {@literal null} if there is none.
+     *
+     * @return whether the capacity was acquired, which is always the case when waiting without a
+     *         deadline.
+     *
+     * @throws DeadlineExceededException if the deadline passed while waiting.
+     */
+    private boolean admit(int recipients, boolean wait, Long sendDeadline) throws IOException {
+        InFlightLimiter limiter = inFlight;
+        if (limiter == null) {
+            return true;
+        }
+        long start = clock.nanoTime();
+        long timeout = !wait ? 0 : sendDeadline == null ? -1 : Math.max(0, sendDeadline - start);
+        if (!limiter.acquire(recipients, timeout)) {
+            if (wait) {
+                throw new DeadlineExceededException(config.getDeadlineMillis(), 0);
+            }
+            return false;
+        }
+        SendListener sendListener = instrumentation;
+        if (sendListener != null) {
+            sendListener.capacityAcquired(limiter.permits(recipients), clock.nanoTime() - start);
+        }
+        return true;
+    }
+
+    /**
+     * Releases the in-flight capacity of a send.
+     */
+    private void release(int recipients) {
+        InFlightLimiter limiter = inFlight;
+        if (limiter != null) {
+            limiter.release(recipients);
+        }
+    }
+
+    /**
+     * Computes the deadline of a send starting now, if the configuration has one.
+     *
+     * @return the deadline, in nanoseconds of the clock, or {@literal null} if there is none.
+     */
+    private Long newDeadline() {
+        long millis = config.getDeadlineMillis();
+        if (millis == 0) {
+            return null;
+        }
+        return clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Starts the deadline of a send on the current thread, if the configuration has one.
+     *
+     * @param callDeadline deadline of the bulk send the send is part of, or {@literal null} to
+     *            start a new one.
+     *
+     * @return the deadline, in nanoseconds of the clock, or {@literal null} if there is none.
+     */
+    private Long startDeadline(Long callDeadline) {
+        Long sendDeadline = callDeadline != null ? callDeadline : newDeadline();
+        if (sendDeadline != null) {
+            deadline.set(sendDeadline);
+        }
+        return sendDeadline;
+    }
+
+    /**
+     * Ends the deadline of a send on the current thread, if any.
+     */
+    private void endDeadline(Long sendDeadline) {
+        if (sendDeadline != null) {
+            deadline.remove();
+        }
+    }
+
+    /**
+     * Gets the time left before a deadline, in milliseconds.
+     */
+    private long remainingMillis(long sendDeadline) {
+        return TimeUnit.NANOSECONDS.toMillis(sendDeadline - clock.nanoTime());
+    }
+
+    /**
+     * Checks the message payload size before anything is sent, as GCM would reject it anyways.
+     */
+    private static void checkPayloadSize(Message message) {
+        if (!nonNull(message).isPayloadSizeValid()) {
+            throw new MessageTooBigException(message.getPayloadSize(), Constants.MAX_PAYLOAD_SIZE);
+        }
+    }
+
+    /**
+     * Notifies a request body that was started to be built at a given time, and its post.
+     *
+     * @return the time the request is posted.
+     */
+    private long requestSerialized(SendListener sendListener, int recipients,
+            String requestBody, long start) {
+        if (sendListener == null) {
+            return 0;
+        }
+        long bytes = utf8Length(requestBody);
+        sendListener.requestSerialized(recipients, bytes, clock.nanoTime() - start);
+        sendListener.postStarted(config.getEndpoint(), recipients, bytes);
+        return clock.nanoTime();
+    }
+
+    /**
+     * Notifies a request that failed, which was posted at a given time.
+     */
+    private void requestFailed(SendListener sendListener, IOException e, long start) {
+        if (sendListener != null) {
+            sendListener.requestFailed(e, clock.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Notifies a response, whose request was posted at a given time.
+     *
+     * @return the time the response parsing starts.
+     */
+    private long responseReceived(SendListener sendListener, int status,
+            String responseBody, long start) {
+        if (sendListener == null) {
+            return 0;
+        }
+        long now = clock.nanoTime();
+        long bytes = responseBody == null ? 0 : utf8Length(responseBody);
+        sendListener.responseReceived(status, bytes, now - start);
+        return now;
+    }
+
+    /**
+     * Computes the size of a string encoded as UTF-8, without encoding it.
+     */
+    private static long utf8Length(String value) {
+        long length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (ch >= 0x800 && !Character.isSurrogate(ch)) {
+                length += 2;
+            }
+            else if (ch >= 0x80) {
+                // a surrogate pair takes 4 bytes, 2 for each half
+                length++;
+            }
+        }
+        return length;
+    }
+
     private IOException newIoException(String responseBody, Exception e) {
         // log exception, as IOException constructor that takes a message and cause
         // is only available on Java 6
-        String msg = "Error parsing JSON response (" + responseBody + ")";
+        String msg = "Error parsing JSON response (" + LogFormat.body(responseBody) + ")";
         logger.log(Level.WARNING, msg, e);
         return new IOException(msg + ":" + e);
     }
@@ -525,7 +1729,8 @@ public class Sender {
     private String[] split(String line) throws IOException {
         String[] split = line.split("=", 2);
         if (split.length != 2) {
-            throw new IOException("Received invalid response line from GCM: " + line);
+            throw new IOException("Received invalid response line from GCM: "
+                    + LogFormat.body(line));
         }
         return split;
     }
@@ -559,13 +1764,27 @@ public class Sender {
         if (url == null || body == null) {
             throw new IllegalArgumentException("arguments cannot be null");
         }
-        if (!url.startsWith("https://")) {
+        // the configured endpoint was already checked when this sender was created
+        if (!url.startsWith("https://") && !url.equals(config.getEndpoint())) {
             logger.warning("URL does not use https: " + url);
         }
-        logger.fine("Sending POST to " + url);
-        logger.finest("POST body: " + body);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Sending POST to " + url);
+        }
         byte[] bytes = body.getBytes();
         HttpURLConnection conn = getConnection(url);
+        int connectTimeout = config.getConnectTimeoutMillis();
+        int readTimeout = config.getReadTimeoutMillis();
+        Long sendDeadline = deadline.get();
+        if (sendDeadline != null) {
+            // a stalled request cannot outlive the deadline of its send
+            int remaining = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                    remainingMillis(sendDeadline)));
+            connectTimeout = connectTimeout == 0 ? remaining : Math.min(connectTimeout, remaining);
+            readTimeout = readTimeout == 0 ? remaining : Math.min(readTimeout, remaining);
+        }
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
         conn.setDoOutput(true);
         conn.setUseCaches(false);
         conn.setFixedLengthStreamingMode(bytes.length);
@@ -669,10 +1888,168 @@ public class Sender {
 
     void sleep(long millis) {
         try {
-            Thread.sleep(millis);
+            clock.sleep(millis);
         }
         catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
     }
+
+    /**
+     * Devices of a bulk send sharing the same message, cut into chunks as they are started.
+     */
+    private final class ChunkGroup {
+
+        private final Message        message;
+        private final List<String>   regIds;
+        // positions of the devices of the group on the input of the bulk send
+        private final int[]          positions;
+        private final int            retries;
+        private final ResultListener listener;
+        // deadline of the whole bulk send, or null
+        private final Long           deadline;
+        // chunks cut so far, in order
+        private final List<Chunk>    chunks = new ArrayList<Chunk>();
+        // number of devices cut into chunks
+        private int                  cut;
+
+        ChunkGroup(Message message, List<String> regIds, int[] positions, int retries,
+                ResultListener listener, Long deadline) {
+            this.message = message;
+            this.regIds = regIds;
+            this.positions = positions;
+            this.retries = retries;
+            this.listener = listener;
+            this.deadline = deadline;
+        }
+
+        int getRemaining() {
+            return positions.length - cut;
+        }
+
+        /**
+         * Cuts the next chunk of the group.
+         *
+         * @param maxSize maximum number of devices of the chunk.
+         * @param maxBytes maximum size of the registration ids of the chunk in the request body,
+         *            which only a chunk of a single device can exceed.
+         */
+        Chunk cut(int maxSize, long maxBytes) {
+            int end = cut;
+            long bytes = 0;
+            while (end < positions.length && end - cut < maxSize) {
+                // quotes and comma around the registration id
+                bytes += regIds.get(positions[end]).length() + 3;
+                if (bytes > maxBytes && end > cut) {
+                    break;
+                }
+                end++;
+            }
+            Chunk chunk = new Chunk(this, cut, end);
+            chunks.add(chunk);
+            cut = end;
+            return chunk;
+        }
+    }
+
+    /**
+     * Chunks of a bulk send, cut from each group in turn with the size of the batch sizer at the
+     * time they are started.
+     */
+    private static final class ChunkQueue {
+
+        private final ArrayDeque<ChunkGroup> groups;
+        private final BatchSizer             sizer;
+
+        ChunkQueue(List<ChunkGroup> groups, BatchSizer sizer) {
+            this.groups = new ArrayDeque<ChunkGroup>(groups);
+            this.sizer = sizer;
+        }
+
+        /**
+         * Gets the number of chunks left if the size does not change.
+         */
+        synchronized int estimateChunks() {
+            int size = sizer == null ? Constants.MAX_MULTICAST_SIZE : sizer.getBatchSize();
+            int chunks = 0;
+            for (ChunkGroup group : groups) {
+                chunks += (group.getRemaining() + size - 1) / size;
+            }
+            return chunks;
+        }
+
+        /**
+         * Cuts the next chunk, or returns {@literal null} if all the devices were cut.
+         */
+        synchronized Chunk next() {
+            ChunkGroup group = groups.poll();
+            if (group == null) {
+                return null;
+            }
+            Chunk chunk;
+            if (sizer == null) {
+                chunk = group.cut(Constants.MAX_MULTICAST_SIZE, Long.MAX_VALUE);
+            }
+            else {
+                chunk = group.cut(sizer.getBatchSize(), sizer.getMaxRequestBytes()
+                        - group.message.getPayloadSize());
+            }
+            if (group.getRemaining() > 0) {
+                groups.add(group);
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Devices of a group sent with a single multicast.
+     */
+    private final class Chunk implements Runnable {
+
+        private final ChunkGroup  group;
+        // range of the devices of the chunk on the positions of the group
+        private final int         from;
+        private final int         to;
+        // outcome of the send, once run
+        private MulticastResult   result;
+        private Exception         failure;
+
+        Chunk(ChunkGroup group, int from, int to) {
+            this.group = group;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void run() {
+            if (group.deadline != null && clock.nanoTime() - group.deadline >= 0) {
+                failure = new DeadlineExceededException(config.getDeadlineMillis(), 0);
+                return;
+            }
+            List<String> regIds = new ArrayList<String>(to - from);
+            for (int i = from; i < to; i++) {
+                regIds.add(group.regIds.get(group.positions[i]));
+            }
+            final ResultListener listener = group.listener;
+            // translates the positions on the chunk to positions on the input
+            ResultListener chunkListener = listener == null ? null : new ResultListener() {
+
+                @Override
+                public void onResult(int index, String registrationId, Result result) {
+                    listener.onResult(group.positions[from + index], registrationId, result);
+                }
+            };
+            try {
+                // the deadline does not follow the chunk to the thread of the executor
+                result = send(group.message, regIds, group.retries, chunkListener, true,
+                        group.deadline);
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+            catch (RuntimeException e) {
+                failure = e;
+            }
+        }
+    }
 }
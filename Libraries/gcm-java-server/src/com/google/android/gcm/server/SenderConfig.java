@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration of the connections of a {@link Sender}.
+ *
+ * <p>
+ * Instances of this class are immutable and should be created using a {@link Builder}. Example:
+ *
+ * <pre>
+ * <code>
+ * SenderConfig config = new SenderConfig.Builder()
+ *    .endpoint("http://localhost:8080/gcm/send")
+ *    .connectTimeout(5, TimeUnit.SECONDS)
+ *    .readTimeout(20, TimeUnit.SECONDS)
+ *    .deadline(1, TimeUnit.MINUTES)
+ *    .build();
+ * Sender sender = new Sender(key, config);
+ * </code>
+ * </pre>
+ */
+public final class SenderConfig {
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    private static final int DEFAULT_READ_TIMEOUT    = 30000;
+
+    private final String     endpoint;
+    private final int        connectTimeoutMillis;
+    private final int        readTimeoutMillis;
+    private final long       deadlineMillis;
+    private final int        maxInFlightRequests;
+    private final int        maxInFlightRecipients;
+
+    public static final class Builder {
+
+        private String endpoint             = Constants.GCM_SEND_ENDPOINT;
+        private int    connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT;
+        private int    readTimeoutMillis    = DEFAULT_READ_TIMEOUT;
+        private long   deadlineMillis;
+        private int    maxInFlightRequests;
+        private int    maxInFlightRecipients;
+
+        /**
+         * Sets the URL the requests are posted to (default value is
+         * {@link Constants#GCM_SEND_ENDPOINT}), such as a proxy or a local simulator.
+         */
+        public Builder endpoint(String value) {
+            endpoint = Sender.nonNull(value);
+            return this;
+        }
+
+        /**
+         * Sets the timeout to open a connection (default value is 10 seconds), 0 meaning no
+         * timeout.
+         */
+        public Builder connectTimeout(long value, TimeUnit unit) {
+            connectTimeoutMillis = toTimeout(value, unit);
+            return this;
+        }
+
+        /**
+         * Sets the timeout to wait for data on an open connection (default value is 30 seconds), 0
+         * meaning no timeout.
+         */
+        public Builder readTimeout(long value, TimeUnit unit) {
+            readTimeoutMillis = toTimeout(value, unit);
+            return this;
+        }
+
+        /**
+         * Sets the maximum duration of each send, retries included, 0 meaning no deadline (the
+         * default). The bulk sends of the sender apply it to the whole call rather than to each
+         * of its requests.
+         */
+        public Builder deadline(long value, TimeUnit unit) {
+            if (value < 0) {
+                throw new IllegalArgumentException("deadline cannot be negative");
+            }
+            deadlineMillis = unit.toMillis(value);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of sends in flight at once, 0 meaning no limit (the default).
+         *
+         * <p>
+         * A send is in flight from its first attempt until its result, retries included. Once
+         * the limit is reached, the blocking send methods wait for capacity in turn, while the
+         * {@code trySend} methods give up at once.
+         */
+        public Builder maxInFlightRequests(int value) {
+            maxInFlightRequests = checkLimit(value);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of devices targeted by the sends in flight, 0 meaning no limit
+         * (the default). See {@link #maxInFlightRequests(int)}.
+         */
+        public Builder maxInFlightRecipients(int value) {
+            maxInFlightRecipients = checkLimit(value);
+            return this;
+        }
+
+        public SenderConfig build() {
+            return new SenderConfig(this);
+        }
+
+        private static int checkLimit(int value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("limit cannot be negative");
+            }
+            return value;
+        }
+
+        private static int toTimeout(long value, TimeUnit unit) {
+            long millis = unit.toMillis(value);
+            if (value < 0 || millis > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid timeout: " + value + " " + unit);
+            }
+            return (int) millis;
+        }
+    }
+
+    private SenderConfig(Builder builder) {
+        endpoint = builder.endpoint;
+        connectTimeoutMillis = builder.connectTimeoutMillis;
+        readTimeoutMillis = builder.readTimeoutMillis;
+        deadlineMillis = builder.deadlineMillis;
+        maxInFlightRequests = builder.maxInFlightRequests;
+        maxInFlightRecipients = builder.maxInFlightRecipients;
+    }
+
+    /**
+     * Gets the URL the requests are posted to.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Gets the timeout to open a connection, in milliseconds (0 for none).
+     */
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Gets the timeout to wait for data on an open connection, in milliseconds (0 for none).
+     */
+    public int getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    /**
+     * Gets the maximum duration of each send, in milliseconds (0 for none).
+     */
+    public long getDeadlineMillis() {
+        return deadlineMillis;
+    }
+
+    /**
+     * Gets the maximum number of sends in flight at once (0 for no limit).
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Gets the maximum number of devices targeted by the sends in flight (0 for no limit).
+     */
+    public int getMaxInFlightRecipients() {
+        return maxInFlightRecipients;
+    }
+
+    @Override
+    public String toString() {
+        return "SenderConfig(endpoint=" + endpoint + ", connectTimeoutMillis="
+                + connectTimeoutMillis + ", readTimeoutMillis=" + readTimeoutMillis
+                + ", deadlineMillis=" + deadlineMillis + ", maxInFlightRequests="
+                + maxInFlightRequests + ", maxInFlightRecipients=" + maxInFlightRecipients + ")";
+    }
+
+}
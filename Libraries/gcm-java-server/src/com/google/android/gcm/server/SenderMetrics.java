@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+/**
+ * Receives the measurements of the requests made by a {@link Sender}.
+ *
+ * <p>
+ * Methods are called on the sending threads, so implementations must be thread-safe and should
+ * be cheap, such as {@link InMemorySenderMetrics}.
+ */
+public interface SenderMetrics {
+
+    /**
+     * Stages of a send whose latency is measured.
+     */
+    enum Stage {
+        /**
+         * Time waiting for a request to be started, such as on the queues of an
+         * {@link OrderedSender} or for the in-flight capacity of the {@link Sender}.
+         */
+        QUEUE,
+        /**
+         * Time building the body of a request.
+         */
+        SERIALIZATION,
+        /**
+         * Time posting a request and reading its response.
+         */
+        NETWORK,
+        /**
+         * Time parsing the body of a response.
+         */
+        PARSE
+    }
+
+    /**
+     * Called before posting a request to GCM.
+     *
+     * @param recipients number of devices of the request.
+     * @param bytes size of the request body.
+     */
+    void requestSent(int recipients, long bytes);
+
+    /**
+     * Called once the response of a request was read.
+     *
+     * @param status HTTP status of the response.
+     * @param bytes size of the response body, or 0 if it was not read.
+     */
+    void responseReceived(int status, long bytes);
+
+    /**
+     * Called when a request failed without a response, because of an {@link java.io.IOException}.
+     */
+    void requestFailed();
+
+    /**
+     * Called for each error returned by GCM, including the ones that are retried.
+     */
+    void errorReceived(GcmError error);
+
+    /**
+     * Called when a request is going to be retried.
+     *
+     * @param backoffMillis time waited before retrying.
+     */
+    void retryScheduled(long backoffMillis);
+
+    /**
+     * Called when a stage of a send is completed.
+     *
+     * @param nanos time spent on the stage, in nanoseconds.
+     */
+    void stageCompleted(Stage stage, long nanos);
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads running blocking sends, using virtual threads when the JVM supports them
+ * (Java 21 or newer).
+ *
+ * <p>
+ * A {@link Sender} blocks its thread while posting requests and while waiting between retries,
+ * which does not scale to many concurrent sends on platform threads. On a virtual thread, both
+ * park the thread instead, releasing its carrier, so a send costs little more than its memory:
+ * the send path never holds a monitor while blocking, which would pin the carrier.
+ *
+ * <p>
+ * Virtual threads are looked up by reflection, so this class works on older JVMs, where it falls
+ * back to daemon platform threads.
+ */
+public final class SenderThreads {
+
+    private static final Logger logger = Logger.getLogger(SenderThreads.class.getName());
+
+    // Thread.ofVirtual(), or null if the JVM does not support virtual threads
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    // Executors.newThreadPerTaskExecutor(ThreadFactory), or null
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null, newExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor",
+                    ThreadFactory.class);
+        }
+        catch (ReflectiveOperationException e) {
+            ofVirtual = null;
+            logger.fine("Virtual threads are not supported, using platform threads");
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newExecutor;
+    }
+
+    private SenderThreads() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Checks whether the JVM supports virtual threads.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates a factory of virtual threads, or of daemon platform threads if virtual threads are
+     * not supported.
+     *
+     * @param name prefix of the name of the threads, followed by a counter.
+     */
+    public static ThreadFactory newThreadFactory(final String name) {
+        Sender.nonNull(name);
+        if (OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name + "-", 0L);
+                return (ThreadFactory) FACTORY.invoke(builder);
+            }
+            catch (IllegalAccessException e) {
+                logger.log(Level.WARNING, "Could not create virtual threads", e);
+            }
+            catch (InvocationTargetException e) {
+                logger.log(Level.WARNING, "Could not create virtual threads", e.getCause());
+            }
+        }
+        final AtomicLong counter = new AtomicLong();
+        return new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, name + "-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task, or caching daemon platform
+     * threads if virtual threads are not supported. It is meant as the executor of
+     * {@link Sender#setExecutor(java.util.concurrent.Executor)} and of the asynchronous senders.
+     *
+     * @param name prefix of the name of the threads, followed by a counter.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
+        ThreadFactory factory = newThreadFactory(name);
+        if (NEW_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+            }
+            catch (IllegalAccessException e) {
+                logger.log(Level.WARNING, "Could not create a thread per task executor", e);
+            }
+            catch (InvocationTargetException e) {
+                logger.log(Level.WARNING, "Could not create a thread per task executor",
+                        e.getCause());
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the registration ids that should be updated according to the results returned by GCM
+ * and applies them in batches to a {@link TokenStore}.
+ *
+ * <p>
+ * A registration id is replaced when GCM returns a canonical registration id for it, and removed
+ * when GCM returns an error flagged as {@link GcmError#INVALID_TOKEN}. Updates are deduplicated in
+ * memory and flushed to the store once {@code batchSize} of them are pending, or when
+ * {@link #flush()} is called.
+ *
+ * <p>
+ * It can be given as the {@link ResultListener} of a send, or fed with
+ * {@link #record(String, Result)}. Instances of this class are thread-safe; the store is never
+ * called while holding a lock.
+ */
+public class TokenHygiene implements ResultListener {
+
+    private static final Logger       logger = Logger.getLogger(TokenHygiene.class.getName());
+
+    private final TokenStore          store;
+    private final int                 batchSize;
+
+    // pending updates, guarded by this
+    private Map<String, String>       canonicalIds;
+    private Set<String>               removedIds;
+
+    /**
+     * Default constructor.
+     *
+     * @param store store where the updates will be applied.
+     * @param batchSize number of pending updates that triggers a flush.
+     */
+    public TokenHygiene(TokenStore store, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.store = Sender.nonNull(store);
+        this.batchSize = batchSize;
+        this.canonicalIds = new LinkedHashMap<String, String>();
+        this.removedIds = new LinkedHashSet<String>();
+    }
+
+    @Override
+    public void onResult(int index, String registrationId, Result result) {
+        record(registrationId, result);
+    }
+
+    /**
+     * Records the result of a message sent to a device, flushing the pending updates if there are
+     * enough of them.
+     *
+     * <p>
+     * Errors flushing the updates are logged, and the updates kept for the next flush.
+     */
+    public void record(String registrationId, Result result) {
+        String canonicalId = result.getCanonicalRegistrationId();
+        GcmError error = result.getError();
+        boolean flush;
+        synchronized (this) {
+            if (error != null && error.isInvalidToken()) {
+                canonicalIds.remove(registrationId);
+                removedIds.add(registrationId);
+            }
+            else if (canonicalId != null && !canonicalId.equals(registrationId)) {
+                canonicalIds.put(registrationId, canonicalId);
+            }
+            else {
+                return;
+            }
+            flush = getPendingCount() >= batchSize;
+        }
+        if (flush) {
+            try {
+                flush();
+            }
+            catch (IOException e) {
+                logger.log(Level.WARNING, "Could not flush registration id updates", e);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of updates not yet applied to the store.
+     */
+    public synchronized int getPendingCount() {
+        return canonicalIds.size() + removedIds.size();
+    }
+
+    /**
+     * Applies all the pending updates to the store.
+     *
+     * @throws IOException if the store could not be updated, in which case the updates are kept
+     *             for the next flush.
+     */
+    public void flush() throws IOException {
+        Map<String, String> flushedCanonicalIds;
+        Set<String> flushedRemovedIds;
+        synchronized (this) {
+            if (canonicalIds.isEmpty() && removedIds.isEmpty()) {
+                return;
+            }
+            flushedCanonicalIds = canonicalIds;
+            flushedRemovedIds = removedIds;
+            canonicalIds = new LinkedHashMap<String, String>();
+            removedIds = new LinkedHashSet<String>();
+        }
+        boolean replaced = false;
+        try {
+            if (!flushedCanonicalIds.isEmpty()) {
+                store.replaceRegistrationIds(flushedCanonicalIds);
+            }
+            replaced = true;
+            if (!flushedRemovedIds.isEmpty()) {
+                store.removeRegistrationIds(flushedRemovedIds);
+            }
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Replaced " + flushedCanonicalIds.size() + " and removed "
+                        + flushedRemovedIds.size() + " registration ids");
+            }
+        }
+        catch (IOException e) {
+            restore(replaced ? null : flushedCanonicalIds, flushedRemovedIds);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            restore(replaced ? null : flushedCanonicalIds, flushedRemovedIds);
+            throw e;
+        }
+    }
+
+    /**
+     * Puts back updates that could not be flushed, without overriding newer ones.
+     */
+    private synchronized void restore(Map<String, String> failedCanonicalIds,
+            Collection<String> failedRemovedIds) {
+        if (failedCanonicalIds != null) {
+            for (Map.Entry<String, String> entry : failedCanonicalIds.entrySet()) {
+                String registrationId = entry.getKey();
+                if (!canonicalIds.containsKey(registrationId)
+                        && !removedIds.contains(registrationId)) {
+                    canonicalIds.put(registrationId, entry.getValue());
+                }
+            }
+        }
+        for (String registrationId : failedRemovedIds) {
+            canonicalIds.remove(registrationId);
+            removedIds.add(registrationId);
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.android.gcm.server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Storage of the registration ids of an application, updated by {@link TokenHygiene} according to
+ * the results returned by GCM.
+ *
+ * <p>
+ * Updates are given in batches, so implementations should apply each of them with as few writes
+ * as possible.
+ */
+public interface TokenStore {
+
+    /**
+     * Replaces registration ids with their canonical version.
+     *
+     * @param canonicalIds canonical registration id by the registration id to be replaced.
+     *
+     * @throws IOException if the store could not be updated.
+     */
+    void replaceRegistrationIds(Map<String, String> canonicalIds) throws IOException;
+
+    /**
+     * Removes registration ids that are not valid anymore.
+     *
+     * @param registrationIds registration ids to be removed.
+     *
+     * @throws IOException if the store could not be updated.
+     */
+    void removeRegistrationIds(Collection<String> registrationIds) throws IOException;
+
+}